@@ -0,0 +1,31 @@
+package com.example.godotbluetooth344;
+
+// A scan result reduced to plain values, everything after the scan callback works with these
+// so it does not depend on the Android classes
+class Advertisement {
+
+    final String address;
+    final String name; // Null when the device does not advertise one
+    final int rssi;
+    final byte[] scanRecord; // Advertisement and scan response data as received
+    final long timeNanos; // SystemClock.elapsedRealtimeNanos() when it was received
+
+    private AdvertisementData data = null;
+
+    Advertisement(String address, String name, int rssi, byte[] scanRecord, long timeNanos) {
+        this.address = address;
+        this.name = name;
+        this.rssi = rssi;
+        this.scanRecord = scanRecord;
+        this.timeNanos = timeNanos;
+    }
+
+    // The scan record is parsed the first time it is needed, by a filter or to send the device
+    AdvertisementData getData() {
+
+        if (data == null) {
+            data = AdvertisementData.parse(scanRecord);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.godotbluetooth344;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+// The fields of an advertisement, parsed from the AD structures of its scan record
+// (Bluetooth Core Specification Supplement, Part A). UUIDs are lowercase 128 bit strings
+class AdvertisementData {
+
+    static final int NO_TX_POWER = Integer.MIN_VALUE;
+
+    private static final int TYPE_FLAGS = 0x01;
+    private static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    private static final int TYPE_UUID16 = 0x03;
+    private static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    private static final int TYPE_UUID32 = 0x05;
+    private static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    private static final int TYPE_UUID128 = 0x07;
+    private static final int TYPE_TX_POWER = 0x0A;
+    private static final int TYPE_SERVICE_DATA16 = 0x16;
+    private static final int TYPE_SERVICE_DATA32 = 0x20;
+    private static final int TYPE_SERVICE_DATA128 = 0x21;
+    private static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    // Every 16 and 32 bit UUID is a shortcut of xxxxxxxx-0000-1000-8000-00805f9b34fb
+    private static final String BASE_UUID_SUFFIX = "-0000-1000-8000-00805f9b34fb";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    int flags = -1; // -1 when not advertised
+    int txPower = NO_TX_POWER; // In dBm
+    final List<String> serviceUuids = new ArrayList<String>();
+    final Map<String, byte[]> serviceData = new LinkedHashMap<String, byte[]>();
+    final Map<Integer, byte[]> manufacturerData = new LinkedHashMap<Integer, byte[]>();
+
+    // Malformed structures end the parsing, the fields found before them are kept
+    static AdvertisementData parse(byte[] record) {
+
+        AdvertisementData data = new AdvertisementData();
+        if (record == null) {
+            return data;
+        }
+
+        int position = 0;
+        while (position < record.length) {
+            int length = record[position] & 0xFF;
+
+            // A zero length is the padding after the last structure
+            if (length == 0 || position + 1 + length > record.length) {
+                break;
+            }
+
+            int type = record[position + 1] & 0xFF;
+            int start = position + 2;
+            int end = position + 1 + length;
+
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (end > start) {
+                        data.flags = record[start] & 0xFF;
+                    }
+                    break;
+
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16:
+                    for (int i = start; i + 2 <= end; i += 2) {
+                        data.serviceUuids.add(shortUuidToString(readLittleEndian(record, i, 2)));
+                    }
+                    break;
+
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32:
+                    for (int i = start; i + 4 <= end; i += 4) {
+                        data.serviceUuids.add(shortUuidToString(readLittleEndian(record, i, 4)));
+                    }
+                    break;
+
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128:
+                    for (int i = start; i + 16 <= end; i += 16) {
+                        data.serviceUuids.add(uuid128ToString(record, i));
+                    }
+                    break;
+
+                case TYPE_TX_POWER:
+                    if (end > start) {
+                        data.txPower = record[start];
+                    }
+                    break;
+
+                case TYPE_SERVICE_DATA16:
+                    if (end - start >= 2) {
+                        data.serviceData.put(shortUuidToString(readLittleEndian(record, start, 2)),
+                                Arrays.copyOfRange(record, start + 2, end));
+                    }
+                    break;
+
+                case TYPE_SERVICE_DATA32:
+                    if (end - start >= 4) {
+                        data.serviceData.put(shortUuidToString(readLittleEndian(record, start, 4)),
+                                Arrays.copyOfRange(record, start + 4, end));
+                    }
+                    break;
+
+                case TYPE_SERVICE_DATA128:
+                    if (end - start >= 16) {
+                        data.serviceData.put(uuid128ToString(record, start),
+                                Arrays.copyOfRange(record, start + 16, end));
+                    }
+                    break;
+
+                case TYPE_MANUFACTURER_DATA:
+                    if (end - start >= 2) {
+                        data.manufacturerData.put((int) readLittleEndian(record, start, 2),
+                                Arrays.copyOfRange(record, start + 2, end));
+                    }
+                    break;
+            }
+
+            position = end;
+        }
+
+        return data;
+    }
+
+    // Accepts 16 bit ("180d"), 32 bit and full UUIDs, returns the lowercase 128 bit form. Throws
+    // IllegalArgumentException if it is not a UUID
+    static String normalizeUuid(String uuid) {
+
+        if (uuid.length() == 4 || uuid.length() == 8) {
+            try {
+                return shortUuidToString(Long.parseLong(uuid, 16));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid UUID " + uuid);
+            }
+        }
+        return UUID.fromString(uuid).toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static long readLittleEndian(byte[] record, int offset, int size) {
+
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (record[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static String shortUuidToString(long value) {
+
+        char[] chars = new char[8];
+        for (int i = 7; i >= 0; i--) {
+            chars[i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+        return new String(chars) + BASE_UUID_SUFFIX;
+    }
+
+    // 128 bit UUIDs are sent in little endian order
+    private static String uuid128ToString(byte[] record, int offset) {
+
+        long leastSignificant = readLittleEndian(record, offset, 8);
+        long mostSignificant = readLittleEndian(record, offset + 8, 8);
+        return new UUID(mostSignificant, leastSignificant).toString();
+    }
+}
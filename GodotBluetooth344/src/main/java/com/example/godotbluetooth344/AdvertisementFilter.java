@@ -0,0 +1,127 @@
+package com.example.godotbluetooth344;
+
+import java.util.Locale;
+import java.util.Map;
+
+// A condition on the parsed fields of an advertisement, checked by the plugin so devices that
+// do not match never reach GDScript. Every field that is set must match
+class AdvertisementFilter {
+
+    int manufacturerId = -1; // -1 means any
+    byte[] manufacturerData = null; // Start of the manufacturer data
+    byte[] manufacturerDataMask = null; // Bits of manufacturerData that must match, null means all
+
+    String serviceDataUuid = null;
+    byte[] serviceData = null;
+    byte[] serviceDataMask = null;
+
+    String serviceUuid = null;
+    int minRssi = Integer.MIN_VALUE;
+
+    String name = null; // Exact advertised name
+    String namePrefix = null;
+    String address = null; // Upper case, as Android reports it
+
+    // The accepted keys are manufacturer_id, manufacturer_data, manufacturer_data_mask,
+    // service_data_uuid, service_data, service_data_mask, service_uuid, min_rssi, name,
+    // name_prefix and address. Throws IllegalArgumentException if a value is not valid
+    static AdvertisementFilter fromDictionary(Map<String, Object> dictionary) {
+
+        AdvertisementFilter filter = new AdvertisementFilter();
+
+        filter.name = (String) dictionary.get("name");
+        filter.namePrefix = (String) dictionary.get("name_prefix");
+        if (dictionary.containsKey("address")) {
+            filter.address = ((String) dictionary.get("address")).toUpperCase(Locale.ROOT);
+        }
+
+        if (dictionary.containsKey("manufacturer_id")) {
+            filter.manufacturerId = ((Number) dictionary.get("manufacturer_id")).intValue();
+            filter.manufacturerData = (byte[]) dictionary.get("manufacturer_data");
+            filter.manufacturerDataMask = (byte[]) dictionary.get("manufacturer_data_mask");
+        }
+
+        if (dictionary.containsKey("service_data_uuid")) {
+            filter.serviceDataUuid = AdvertisementData.normalizeUuid((String) dictionary.get("service_data_uuid"));
+            filter.serviceData = (byte[]) dictionary.get("service_data");
+            filter.serviceDataMask = (byte[]) dictionary.get("service_data_mask");
+        }
+
+        if (dictionary.containsKey("service_uuid")) {
+            filter.serviceUuid = AdvertisementData.normalizeUuid((String) dictionary.get("service_uuid"));
+        }
+
+        if (dictionary.containsKey("min_rssi")) {
+            filter.minRssi = ((Number) dictionary.get("min_rssi")).intValue();
+        }
+
+        if (filter.manufacturerDataMask != null && (filter.manufacturerData == null
+                || filter.manufacturerDataMask.length != filter.manufacturerData.length)) {
+            throw new IllegalArgumentException("manufacturer_data_mask must be as long as manufacturer_data");
+        }
+        if (filter.serviceDataMask != null && (filter.serviceData == null
+                || filter.serviceDataMask.length != filter.serviceData.length)) {
+            throw new IllegalArgumentException("service_data_mask must be as long as service_data");
+        }
+
+        return filter;
+    }
+
+    // If the filter names a device or a kind of device. min_rssi alone, or no keys at all,
+    // matches every device in range
+    boolean identifiesDevice() {
+        return address != null || name != null || namePrefix != null || serviceUuid != null
+                || serviceDataUuid != null || manufacturerId >= 0;
+    }
+
+    boolean matches(Advertisement advertisement) {
+
+        // The fields that need no parsing first
+        if (advertisement.rssi < minRssi) {
+            return false;
+        }
+        if (address != null && !address.equals(advertisement.address)) {
+            return false;
+        }
+        if (name != null && !name.equals(advertisement.name)) {
+            return false;
+        }
+        if (namePrefix != null && (advertisement.name == null || !advertisement.name.startsWith(namePrefix))) {
+            return false;
+        }
+
+        AdvertisementData data = advertisement.getData();
+
+        if (manufacturerId >= 0 && !startsWith(data.manufacturerData.get(manufacturerId), manufacturerData, manufacturerDataMask)) {
+            return false;
+        }
+
+        if (serviceDataUuid != null && !startsWith(data.serviceData.get(serviceDataUuid), serviceData, serviceDataMask)) {
+            return false;
+        }
+
+        return serviceUuid == null || data.serviceUuids.contains(serviceUuid);
+    }
+
+    // A missing value never matches, a missing prefix matches any value
+    private static boolean startsWith(byte[] value, byte[] prefix, byte[] mask) {
+
+        if (value == null) {
+            return false;
+        }
+        if (prefix == null) {
+            return true;
+        }
+        if (value.length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            int bits = mask != null ? mask[i] : 0xFF;
+            if ((value[i] & bits) != (prefix[i] & bits)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.godotbluetooth344;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.UUID;
+
+// Sends the requests of a GattOperationQueue to a real device
+class AndroidGattTransport implements GattTransport {
+
+    static final UUID CONFIG_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final BluetoothGatt gatt;
+
+    AndroidGattTransport(BluetoothGatt gatt) {
+        this.gatt = gatt;
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return gatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+
+        // The value and the write type are read during writeCharacteristic, so they are set here
+        // and not when queued. The write type is restored right after
+        int previousWriteType = characteristic.getWriteType();
+
+        characteristic.setValue(value);
+        characteristic.setWriteType(writeType);
+        boolean started = gatt.writeCharacteristic(characteristic);
+        characteristic.setWriteType(previousWriteType);
+
+        return started;
+    }
+
+    @Override
+    public boolean setNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+
+        if (!gatt.setCharacteristicNotification(characteristic, enable)) {
+            return false;
+        }
+
+        // Set the Client Characteristic Config Descriptor to allow or stop server initiated updates
+        BluetoothGattDescriptor desc = characteristic.getDescriptor(CONFIG_DESCRIPTOR);
+        if (desc == null) {
+            return false;
+        }
+
+        desc.setValue(enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        return gatt.writeDescriptor(desc);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return gatt.discoverServices();
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.godotbluetooth344;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+
+import java.util.List;
+
+// Scans with the BluetoothLeScanner of the adapter. The scanner calls back on the main thread,
+// results are handed over to the thread of handler. start and stop are called from that thread.
+// Every scan has its own callback, so nothing of a stopped scan is taken for the next one
+class AndroidScanTransport implements ScanTransport {
+
+    // Time the scanner is left running after stop for the results it is still holding
+    private static final long FLUSH_TIMEOUT = 1000;
+
+    private final BluetoothAdapter adapter;
+    private final Handler handler;
+
+    private Scan scan = null; // Null when not scanning
+
+    AndroidScanTransport(BluetoothAdapter adapter, Handler handler) {
+        this.adapter = adapter;
+        this.handler = handler;
+    }
+
+    @Override
+    public void start(ScanConfiguration configuration, Listener listener) {
+
+        // The scanner is null while Bluetooth is off, so it is not kept between scans
+        BluetoothLeScanner leScanner = adapter.isEnabled() ? adapter.getBluetoothLeScanner() : null;
+        scan = new Scan(leScanner, listener);
+        if (leScanner == null) {
+            scan.fail(SCAN_FAILED_BLUETOOTH_OFF);
+            return;
+        }
+
+        ScanSettings settings = configuration.buildSettings(adapter);
+        scan.batched = settings.getReportDelayMillis() > 0;
+        try {
+            leScanner.startScan(configuration.getFilters(), settings, scan);
+        } catch (IllegalStateException e) {
+            // Bluetooth was turned off after the check
+            scan.fail(SCAN_FAILED_BLUETOOTH_OFF);
+        }
+    }
+
+    @Override
+    public void stop() {
+
+        final Scan stopped = scan;
+        scan = null;
+        if (stopped == null || stopped.scanner == null) {
+            return;
+        }
+
+        // The results held by the controller come in a batch after the flush, the scanner is
+        // stopped when it arrives, or after FLUSH_TIMEOUT if it never does
+        if (stopped.batched && adapter.isEnabled()) {
+            stopped.draining = true;
+            try {
+                stopped.scanner.flushPendingScanResults(stopped);
+                handler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        stopped.stopScanner();
+                    }
+                }, FLUSH_TIMEOUT);
+                return;
+            } catch (IllegalStateException e) {
+                // Turned off while flushing
+            }
+        }
+        stopped.stopScanner();
+    }
+
+    // Returns null for results without address
+    static Advertisement toAdvertisement(ScanResult result) {
+
+        if (result == null || result.getDevice() == null || result.getDevice().getAddress() == null) {
+            return null;
+        }
+
+        ScanRecord record = result.getScanRecord();
+
+        return new Advertisement(result.getDevice().getAddress(),
+                record != null ? record.getDeviceName() : null,
+                result.getRssi(),
+                record != null ? record.getBytes() : null,
+                result.getTimestampNanos());
+    }
+
+    private class Scan extends ScanCallback {
+
+        private final BluetoothLeScanner scanner; // Null if the scan could not start
+        private final Listener listener;
+        private boolean batched = false;
+        private volatile boolean draining = false; // Stopped, waiting for the flushed results
+        private boolean scannerStopped = false;
+
+        Scan(BluetoothLeScanner scanner, Listener listener) {
+            this.scanner = scanner;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            deliver(result);
+        }
+
+        @Override
+        // Called instead of onScanResult when there is a report delay
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                deliver(result);
+            }
+            if (draining) {
+                stopScanner();
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            fail(errorCode);
+        }
+
+        // Reported only while this is the scan running, a stopped scan fails silently. A scan
+        // that could not start is reported after start has returned, like the other failures
+        void fail(final int errorCode) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (scan == Scan.this) {
+                        scan = null;
+                        listener.onScanFailed(errorCode);
+                    }
+                }
+            });
+        }
+
+        // Results of a stopped scan are only delivered if they were flushed by stop
+        private void deliver(ScanResult result) {
+
+            final Advertisement advertisement = toAdvertisement(result);
+            final boolean flushed = draining;
+            if (advertisement != null) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (scan == Scan.this || flushed) {
+                            listener.onAdvertisement(advertisement);
+                        }
+                    }
+                });
+            }
+        }
+
+        // Called from stop, the flush timeout or the flushed batch, only the first call stops it
+        synchronized void stopScanner() {
+
+            if (scannerStopped) {
+                return;
+            }
+            scannerStopped = true;
+            draining = false;
+
+            // Once Bluetooth is off the scan is already stopped, and the scanner throws
+            try {
+                if (adapter.isEnabled()) {
+                    scanner.stopScan(this);
+                }
+            } catch (IllegalStateException e) {
+                // Turned off while stopping
+            }
+        }
+    }
+}
@@ -1,18 +1,15 @@
 package com.example.godotbluetooth344;
 
-import static android.bluetooth.le.ScanSettings.SCAN_MODE_LOW_LATENCY;
-
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanResult;
+import android.bluetooth.BluetoothSocket;
 import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -22,7 +19,10 @@ import android.content.pm.PackageManager;
 import android.location.LocationManager;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.ArraySet;
+import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.ActivityCompat;
@@ -32,35 +32,126 @@ import org.godotengine.godot.Godot;
 import org.godotengine.godot.plugin.GodotPlugin;
 import org.godotengine.godot.plugin.SignalInfo;
 
+import javax.microedition.khronos.opengles.GL10;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BluetoothManager extends GodotPlugin {
 
     // General
     private Context context;
     private BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-    private BluetoothLeScanner bluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
     private LocationManager locationManager;
-    private Handler handler = new Handler();
 
+    // Threading: every Bluetooth request, scan result, timer and GATT callback (Android 8 or newer,
+    // older versions call them on binder threads) runs on bluetoothThread. Methods called from
+    // GDScript post their work there, or queue GATT operations that GattOperationQueue sends from
+    // there, so they never wait for the stack. Results are emitted as signals from bluetoothThread,
+    // or kept for pollEvents while the event queue is enabled, see enableEventQueue
+    private final HandlerThread bluetoothThread = startBluetoothThread();
+    private final Handler handler = new Handler(bluetoothThread.getLooper());
+    private ScanTransport scanTransport = new AndroidScanTransport(mBluetoothAdapter, handler);
 
-    private ScanSettings settings = null;
+
+    private ScanConfiguration scanConfiguration = new ScanConfiguration();
 
     private static long  ScanPeriod = 100000;
 
-    private BluetoothGatt bluetoothGatt; // This is a reference to the connected device
+    // Links with the devices we are connected or connecting to, key is the address
+    private ConcurrentMap<String, DeviceConnection> connections = new ConcurrentHashMap<String, DeviceConnection>();
+    private CharacteristicHandles characteristicHandles = new CharacteristicHandles();
+    private volatile long operationTimeout = 5000;
+    private volatile int preferredMtu = 517; // Requested after connecting, 0 keeps the default
+    private volatile int preferredConnectionPriority = -1; // Requested after connecting, -1 keeps the default
+    private volatile int preferredPhy = 0; // Mask of PHYs requested after connecting, 0 keeps the default
+
+    // Connections that failed or were lost are opened again, see scheduleReconnect
+    private final ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    private final ConcurrentMap<String, Runnable> pendingReconnects = new ConcurrentHashMap<String, Runnable>();
+    private static final long DISCONNECT_TIMEOUT = 2000; // Time to wait for the callback before closing
+    private static final int MAX_DISCOVERY_RETRIES = 1; // A failed service discovery is tried once more
+
+    // Layouts of the devices connected before, see setGattCacheEnabled
+    private GattCache gattCache;
+    private volatile boolean gattCacheEnabled = false;
+    private static final String DEVICE_INFORMATION_SERVICE = "0000180a-0000-1000-8000-00805f9b34fb";
+    private static final String FIRMWARE_REVISION = "00002a26-0000-1000-8000-00805f9b34fb";
+
+    // Logging, messages above logLevel are not built nor sent
+    static final int LOG_NONE = 0;
+    static final int LOG_ERROR = 1;
+    static final int LOG_WARNING = 2;
+    static final int LOG_INFO = 3;
+    static final int LOG_VERBOSE = 4;
+    private volatile int logLevel = LOG_VERBOSE;
+
+    private GattTrace gattTrace = new GattTrace(1024);
+    private volatile boolean traceEnabled = true;
+
+    // Metrics, see getStats
+    private ConcurrentMap<String, LinkMetrics> linkMetrics = new ConcurrentHashMap<String, LinkMetrics>();
+    private long statsStartTime = SystemClock.elapsedRealtime();
+    private volatile long statsInterval = 0; // 0 means no _on_stats signal
 
     // Specific
-    private boolean scanning = false;
-    private boolean connected = false;
-    private Map<String, ScanResult> devices = new HashMap<String, ScanResult>(); // Key is the address
+    private volatile boolean scanning = false;
+    private DeviceRegistry devices = new DeviceRegistry(1024, 0);
+    private ScanProcessor scanProcessor = new ScanProcessor(devices, new ScanProcessor.Listener() {
+        @Override
+        public void onDeviceFound(Advertisement advertisement) {
+            sendNewDevice(advertisement);
+        }
+    });
+
+    private volatile long scanCoalescingTick = 0;
+
+    // Notifications rebuilt into messages, key is the handle of the characteristic
+    private final ConcurrentMap<Integer, MessageFramer> messageFramers = new ConcurrentHashMap<Integer, MessageFramer>();
+
+    // Decoders of the values read, key is the handle of the characteristic
+    private final ConcurrentMap<Integer, ValueDecoder> valueDecoders = new ConcurrentHashMap<Integer, ValueDecoder>();
 
-    private boolean reportDuplicates = true;
+    // Handles of the characteristics written in latest value mode, see enableLatestValueWrites
+    private final Set<Integer> latestValueWrites = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    // L2CAP channels, see openChannel
+    private final ConcurrentMap<Integer, Channel> channels = new ConcurrentHashMap<Integer, Channel>();
+    private final AtomicInteger nextChannelId = new AtomicInteger(0);
+    private static final int CHANNEL_BUFFER_SIZE = 8192;
+    private static final int CHANNEL_QUEUE_SIZE = 64;
+
+    // Set by connectWhenSeen, only used on the bluetooth thread
+    private AdvertisementFilter connectWhenSeenCriteria = null;
+
+    // Null while signals are emitted, see enableEventQueue
+    private volatile EventRing eventRing = null;
+
+    // Polling, see addPolledCharacteristic
+    private final CharacteristicPoller poller = new CharacteristicPoller();
+    private final NotificationBatcher pollResults = new NotificationBatcher(0);
+    private volatile long pollResultsInterval = 0; // 0 means once per frame
+
+    // Adaptive scanning, see enableAdaptiveScan
+    private final ScanScheduler scanScheduler = new ScanScheduler();
+    private volatile boolean adaptiveScan = false;
+    private boolean leScanActive = false; // Only used from bluetoothThread
+    private long windowStartFound = 0;
+    private long windowEnd = 0; // SystemClock.elapsedRealtime() at the end of the current window
+
+    // Notification batching, every connection gets its own batcher
+    private volatile boolean notificationBatching = false;
+    private volatile long notificationBatchInterval = 0; // 0 means once per frame
+    private volatile int notificationBatchMaxSamples = 0;
 
     // Permissions related functions
     public boolean hasLocationPermissions() {
@@ -78,6 +169,12 @@ public class BluetoothManager extends GodotPlugin {
         return ActivityCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
     }
 
+    // BLUETOOTH_SCAN and BLUETOOTH_CONNECT only exist from Android 12, older versions never grant
+    // them and do not need them
+    private boolean lacksBluetoothPermission(String permission) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && !hasPermission(permission);
+    }
+
     public BluetoothManager(Godot godot) {
 
         super(godot);
@@ -88,6 +185,8 @@ public class BluetoothManager extends GodotPlugin {
         // Get the location manager
         this.locationManager = (LocationManager) this.context.getSystemService(Context.LOCATION_SERVICE);
 
+        this.gattCache = new GattCache(context);
+
         // Register the listener to the Bluetooth Status
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
         context.registerReceiver(mReceiver, filter);
@@ -98,9 +197,83 @@ public class BluetoothManager extends GodotPlugin {
         filter = new IntentFilter(LocationManager.PROVIDERS_CHANGED_ACTION);
         context.registerReceiver(mGpsSwitchStateReceiver, filter);
 
-        ScanSettings.Builder settingBuilder = new ScanSettings.Builder();
-        settingBuilder.setScanMode(SCAN_MODE_LOW_LATENCY);
-        settings = settingBuilder.build();
+        // Forgotten devices do not need to be coalesced anymore
+        devices.setEvictionListener(new DeviceRegistry.EvictionListener() {
+            @Override
+            public void onEvicted(String address) {
+                ScanCoalescer<Advertisement> coalescer = scanProcessor.coalescer;
+                if (coalescer != null) {
+                    coalescer.remove(address);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onMainPause() {
+        setForeground(false);
+    }
+
+    @Override
+    public void onMainResume() {
+        setForeground(true);
+    }
+
+    // Adaptive scans change their mode at once instead of waiting for the end of the window. The
+    // window is not ended early, the scan started with the new mode scans for the rest of it
+    private void setForeground(final boolean foreground) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                scanScheduler.foreground = foreground;
+                if (!adaptiveScan || !scanning) {
+                    return;
+                }
+
+                int mode = scanScheduler.mode();
+                if (mode == scanConfiguration.scanMode) {
+                    return;
+                }
+                if (leScanActive) {
+                    handler.removeCallbacks(scanWindowRunnable);
+                    stopLeScan();
+                    scanConfiguration.scanMode = mode;
+                    startLeScan();
+                } else {
+                    scanConfiguration.scanMode = mode; // Paused, the next window uses it
+                }
+            }
+        });
+    }
+
+    private static HandlerThread startBluetoothThread() {
+
+        HandlerThread thread = new HandlerThread("GodotBluetooth344");
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void onMainDestroy() {
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopScanning();
+
+                pendingReconnects.clear();
+                for (Channel channel : channels.values()) {
+                    channel.close();
+                }
+                for (DeviceConnection connection : connections.values()) {
+                    connection.disconnectRequested = true;
+                    closeConnection(connection);
+                }
+            }
+        });
+
+        // Runs what was already posted, the connections are closed before the thread ends
+        bluetoothThread.quitSafely();
     }
 
     @NonNull
@@ -111,11 +284,29 @@ public class BluetoothManager extends GodotPlugin {
 
     public boolean hasGetScanPeriod() { return true; }
     public void setReportDuplicates(boolean report) {
-        reportDuplicates = report;
+        scanProcessor.reportDuplicates = report;
     }
 
     public boolean getReportDuplicates() {
-        return reportDuplicates;
+        return scanProcessor.reportDuplicates;
+    }
+
+    // Devices already found are sent again only when their advertisement changes, or their RSSI
+    // moves rssiDelta dBm or more (0 ignores the RSSI)
+    public void setReportChangesOnly(boolean enabled) {
+        scanProcessor.changesOnly = enabled;
+    }
+
+    public boolean getReportChangesOnly() {
+        return scanProcessor.changesOnly;
+    }
+
+    public void setReportRssiDelta(int rssiDelta) {
+        scanProcessor.rssiDelta = rssiDelta;
+    }
+
+    public int getReportRssiDelta() {
+        return scanProcessor.rssiDelta;
     }
 
     public void setScanPeriod(long scanPeriod) {
@@ -126,347 +317,2228 @@ public class BluetoothManager extends GodotPlugin {
         return ScanPeriod;
     }
 
-    @SuppressWarnings("deprecation")
-    @NonNull
-    @Override
-    public List<String> getPluginMethods() {
-        return Arrays.asList("sendDebugSignal",
-                "bluetoothStatus",
-                "scan",
-                "stopScan",
-                "hasLocationPermissions",
-                "locationStatus",
-                "connect",
-                "disconnect",
-                "listServicesAndCharacteristics",
-                "subscribeToCharacteristic",
-                "unsubscribeFromCharacteristic",
-                "writeBytesToCharacteristic",
-                "writeStringToCharacteristic",
-                "readFromCharacteristic",
-                "setScanPeriod",
-                "getScanPeriod",
-                "hasGetScanPeriod",
-                "setReportDuplicates",
-                "getReportDuplicates");
+    public void setScanReportDelay(long delay) {
+        scanConfiguration.reportDelay = delay;
     }
 
-    public void sendDebugSignal(String s) {
+    public long getScanReportDelay() {
+        return scanConfiguration.reportDelay;
+    }
 
-        emitSignal("_on_debug_message", s);
-        Log.d("BluetoothManager", s);
+    public void setScanMatchMode(int matchMode) {
+        scanConfiguration.matchMode = matchMode;
+    }
 
+    public void setScanNumOfMatches(int numOfMatches) {
+        scanConfiguration.numOfMatches = numOfMatches;
     }
 
-    public void sendNewDevice(ScanResult newDevice) {
+    // Devices not seen for ttl milliseconds (0 means never) are forgotten, and only the capacity
+    // most recently seen devices are remembered. Forgotten devices are reported again as new
+    public void setKnownDevicesLimits(int capacity, long ttl) {
+        devices.setLimits(capacity, ttl);
+    }
 
-        org.godotengine.godot.Dictionary deviceData = new org.godotengine.godot.Dictionary();
+    public org.godotengine.godot.Dictionary getKnownDevices() {
 
-        deviceData.put("name", newDevice.getScanRecord().getDeviceName());
-        deviceData.put("address", newDevice.getDevice().getAddress());
-        deviceData.put("rssi", newDevice.getRssi());
-        deviceData.put("manufacturerData", newDevice.getScanRecord().getBytes());
+        org.godotengine.godot.Dictionary knownDevices = new org.godotengine.godot.Dictionary();
+        long now = SystemClock.elapsedRealtime();
 
-        emitSignal("_on_device_found", deviceData);
-    }
+        for (DeviceRegistry.Record record : devices.snapshot(now)) {
+            org.godotengine.godot.Dictionary deviceData = new org.godotengine.godot.Dictionary();
+            String address = DeviceRegistry.longToAddress(record.address);
 
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    @NonNull
-    @Override
-    public Set<SignalInfo> getPluginSignals() {
-        Set<SignalInfo> signals = new ArraySet<>();
+            deviceData.put("name", record.name);
+            deviceData.put("address", address);
+            deviceData.put("rssi", record.rssi);
+            deviceData.put("last_seen", now - record.lastSeen);
 
-        signals.add(new SignalInfo("_on_debug_message", String.class));
-        signals.add(new SignalInfo("_on_device_found", org.godotengine.godot.Dictionary.class));
-        signals.add(new SignalInfo("_on_bluetooth_status_change", String.class));
-        signals.add(new SignalInfo("_on_location_status_change", String.class));
-        signals.add(new SignalInfo("_on_connection_status_change", String.class));
-        signals.add(new SignalInfo("_on_characteristic_finding", String.class));
-        signals.add(new SignalInfo("_on_characteristic_found", org.godotengine.godot.Dictionary.class));
-        signals.add(new SignalInfo("_on_characteristic_read", org.godotengine.godot.Dictionary.class));
-        signals.add(new SignalInfo("_on_scan_stopped", String.class));
-        return signals;
+            knownDevices.put(address, deviceData);
+        }
+        return knownDevices;
     }
 
-    public void scan() {
-        if (hasLocationPermissions()) {
-            if (!scanning) {
-                // Stops scanning after a predefined scan period.
-                handler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        scanning = false;
+    public void clearKnownDevices() {
 
-                        if (hasPermission(Manifest.permission.BLUETOOTH_SCAN)) {
+        devices.clear();
 
-                            sendDebugSignal(
-                                    "Cannot stop a scan because you do not have Manifest.permission.BLUETOOTH_SCAN");
-                            return;
-                        }
-                        bluetoothLeScanner.stopScan(leScanCallback);
-                        emitSignal("_on_scan_stopped", "scanTimedOut");
-                    }
-                }, ScanPeriod);
+        ScanCoalescer<Advertisement> coalescer = scanProcessor.coalescer;
+        if (coalescer != null) {
+            coalescer.clear();
+        }
+    }
 
-                scanning = true;
-                bluetoothLeScanner.startScan(null, settings, leScanCallback );
+    // Only devices matching at least one filter will be found by the next scan
+    public boolean addScanFilter(org.godotengine.godot.Dictionary filter) {
 
+        try {
+            scanConfiguration.addFilter(ScanConfiguration.filterFromDictionary(filter));
+            return true;
+        } catch (IllegalArgumentException | ClassCastException e) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Invalid scan filter: " + e.getMessage());
             }
-        } else {
-            sendDebugSignal("Cannot start a scan because you do not have location permissions");
+            return false;
         }
     }
 
-    public void stopScan() {
-
-        if (scanning) {
-            scanning = false;
-            if (hasPermission(Manifest.permission.BLUETOOTH_SCAN)) {
+    // Unlike scan filters these are checked by the plugin, on the parsed advertisement, and
+    // take effect at once
+    public boolean addAdvertisementFilter(org.godotengine.godot.Dictionary filter) {
 
-                sendDebugSignal("Cannot stop a scan because you do not have Manifest.permission.BLUETOOTH_SCAN");
-                return;
+        try {
+            scanProcessor.filters.add(AdvertisementFilter.fromDictionary(filter));
+            return true;
+        } catch (IllegalArgumentException | ClassCastException e) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Invalid advertisement filter: " + e.getMessage());
             }
-            //emitSignal("_on_scan_stopped", "stopScan");
-            bluetoothLeScanner.stopScan(leScanCallback);
+            return false;
         }
     }
 
+    public void clearAdvertisementFilters() {
+        scanProcessor.filters.clear();
+    }
 
-    private ScanCallback leScanCallback =
-            new ScanCallback() {
-                @Override
-                public void onScanResult(int callbackType, ScanResult result) {
-                     // We are only interested in devices with name
-                    if (result != null && result.getDevice() != null && result.getDevice().getAddress() != null && result.getScanRecord().getDeviceName() != null) {
-                         if (!devices.containsKey(result.getDevice().getAddress())) {
-                            devices.put(result.getDevice().getAddress(), result);
-                            sendNewDevice(result);
-                        } else {
-                             if (reportDuplicates) {
-                                sendNewDevice(result);
-                            }
-                        }
-                    }
-                }
+    // Notifications of the characteristic are put together into the messages the device sends, and
+    // every message is sent by _on_message instead of _on_characteristic_read. See
+    // MessageFramer.fromDictionary for the format. The device must be connected
+    public boolean setMessageFraming(int handle, org.godotengine.godot.Dictionary format) {
+
+        CharacteristicHandles.Entry entry = characteristicHandles.get(handle);
+        if (entry == null) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Cannot frame messages of handle " + handle);
             }
+            return false;
         }
-    };
-
-    // Status functions
-    public boolean bluetoothStatus() {
 
-        return mBluetoothAdapter.isEnabled();
+        try {
+            messageFramers.put(handle, MessageFramer.fromDictionary(format,
+                    new MessageListener(entry.connection.address, handle)));
+            return true;
+        } catch (IllegalArgumentException | ClassCastException e) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Invalid message framing: " + e.getMessage());
+            }
+            return false;
+        }
     }
 
-    public boolean locationStatus() {
+    public void clearMessageFraming(int handle) {
+        messageFramers.remove(handle);
+    }
 
-        Boolean gps_enabled = false;
-        Boolean network_enabled = false;
+    // Values read from the characteristic, by notification, read or message, also carry the decoded
+    // fields in values. See ValueDecoder.fromDictionary for the schema. The device must be connected
+    public boolean setValueDecoder(int handle, org.godotengine.godot.Dictionary schema) {
 
-        try {
-            gps_enabled = locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER);
-        } catch (Exception ex) {
+        if (characteristicHandles.get(handle) == null) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Cannot decode values of handle " + handle);
+            }
+            return false;
         }
 
         try {
-            network_enabled = locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
-        } catch (Exception ex) {
-        }
-
-        if (!gps_enabled && !network_enabled) {
+            valueDecoders.put(handle, ValueDecoder.fromDictionary(schema));
+            return true;
+        } catch (IllegalArgumentException | ClassCastException e) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Invalid value decoder: " + e.getMessage());
+            }
             return false;
         }
-        return true;
     }
 
-    public void listServicesAndCharacteristics() {
-
-        if (connected) {
-            // Discover services and characteristics for this device
-            if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
-                sendDebugSignal("Cannot list services because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+    public void clearValueDecoder(int handle) {
+        valueDecoders.remove(handle);
+    }
 
-                return;
-            }
+    // Adds values to data if the handle has a decoder
+    private void putDecodedValues(org.godotengine.godot.Dictionary data, int handle, byte[] value, int length) {
 
-            bluetoothGatt.discoverServices();
+        ValueDecoder decoder = valueDecoders.isEmpty() ? null : valueDecoders.get(handle);
+        if (decoder == null || value == null) {
+            return;
         }
+
+        org.godotengine.godot.Dictionary values = new org.godotengine.godot.Dictionary();
+        decoder.decode(value, length, values);
+        data.put("values", values);
     }
 
-    // This monitors the bluetooth status
-    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
+    private class MessageListener implements MessageFramer.Listener {
 
-            if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
-                final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
-                        BluetoothAdapter.ERROR);
-                switch (state) {
-                    case BluetoothAdapter.STATE_OFF:
-                        emitSignal("_on_bluetooth_status_change", "off");
-                        break;
-                    case BluetoothAdapter.STATE_TURNING_OFF:
-                        emitSignal("_on_bluetooth_status_change", "turning_off");
-                        break;
-                    case BluetoothAdapter.STATE_ON:
-                        emitSignal("_on_bluetooth_status_change", "on");
-                        break;
-                    case BluetoothAdapter.STATE_TURNING_ON:
-                        emitSignal("_on_bluetooth_status_change", "turning_on");
-                        break;
-                }
-            }
+        private final String address;
+        private final int handle;
+
+        MessageListener(String address, int handle) {
+            this.address = address;
+            this.handle = handle;
         }
-    };
 
-    // This monitors the location status
-    private BroadcastReceiver mGpsSwitchStateReceiver = new BroadcastReceiver() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-
-            if (action.equals(LocationManager.PROVIDERS_CHANGED_ACTION)) {
+        public void onMessage(byte[] buffer, int length) {
 
-                boolean isGpsEnabled = locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER);
-                boolean isNetworkEnabled = locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
+            org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
 
-                if (isGpsEnabled) {
+            data.put("address", address);
+            data.put("handle", handle);
+            data.put("bytes", Arrays.copyOf(buffer, length));
+            putDecodedValues(data, handle, buffer, length);
 
-                    emitSignal("_on_location_status_change", "on");
-                } else if (isNetworkEnabled) {
+            emitSignal("_on_message", data);
+        }
 
-                    emitSignal("_on_location_status_change", "on");
-                } else {
+        @Override
+        public void onError(int error) {
 
-                    emitSignal("_on_location_status_change", "off");
-                }
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Message dropped from handle " + handle + ", error " + error);
             }
-        }
-    };
 
-    // Device connect call back
-    private final BluetoothGattCallback btleGattCallback = new BluetoothGattCallback() {
+            org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
 
-        @Override
-        // Called when a devices connects or disconnects
-        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+            data.put("address", address);
+            data.put("handle", handle);
+            data.put("error", error == MessageFramer.ERROR_TOO_LONG ? "too_long" : "missing_fragment");
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
+            emitSignal("_on_message_error", data);
+        }
+    }
 
-                switch (newState) {
-                    case BluetoothProfile.STATE_DISCONNECTED:
+    public void clearScanFilters() {
+        scanConfiguration.clearFilters();
+    }
 
-                        emitSignal("_on_connection_status_change", "disconnected");
-                        connected = false;
+    public void setPreferredMtu(int mtu) {
+        preferredMtu = mtu;
+    }
 
-                        break;
-                    case BluetoothProfile.STATE_CONNECTED:
-                        connected = true;
-                        // Read services and characteristics
-                        listServicesAndCharacteristics();
+    public int getPreferredMtu() {
+        return preferredMtu;
+    }
 
-                        emitSignal("_on_connection_status_change", "connected");
+    public void setPreferredConnectionPriority(int priority) {
+        preferredConnectionPriority = priority;
+    }
 
-                        break;
-                }
-            } else { // There was an issue connecting
+    public int getPreferredConnectionPriority() {
+        return preferredConnectionPriority;
+    }
 
-                sendDebugSignal(Integer.toString(status));
-            }
-        }
+    public void setPreferredPhy(int phyMask) {
+        preferredPhy = phyMask;
+    }
 
-        @Override
-        // Called after a BluetoothGatt.discoverServices() call
-        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+    public int getPreferredPhy() {
+        return preferredPhy;
+    }
 
-            sendServicesAndCharacteristics(bluetoothGatt.getServices());
-        }
+    // Number of times a lost link is connected again, 0 disables it and -1 means no limit
+    public void setReconnectAttempts(int attempts) {
+        reconnectPolicy.maxAttempts = attempts;
+    }
 
-        @Override
-        // Result of a characteristic read operation
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                BluetoothGattCharacteristic characteristic,
-                // byte[] value, For Android Tiramisu we need this
-                int status) {
+    public int getReconnectAttempts() {
+        return reconnectPolicy.maxAttempts;
+    }
 
-            sendDebugSignal("onCharacteristicRead");
+    // Milliseconds before the first attempt, every attempt after it waits twice as long
+    public void setReconnectDelay(long delay) {
+        reconnectPolicy.initialDelay = delay;
+    }
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                sendDebugSignal("onCharacteristicRead: SUCCESS");
-            } else {
+    public long getReconnectDelay() {
+        return reconnectPolicy.initialDelay;
+    }
 
-                sendDebugSignal("onCharacteristicRead: " + Integer.toString(status));
-            }
-        }
+    // Number of times a new connection failing with status 133 is tried again
+    public void setGattErrorRetries(int retries) {
+        reconnectPolicy.gattErrorRetries = retries;
+    }
 
-        @Override
-        // Result of a characteristic read operation
-        public void onCharacteristicWrite(BluetoothGatt gatt,
+    public int getGattErrorRetries() {
+        return reconnectPolicy.gattErrorRetries;
+    }
+
+    public void setOperationTimeout(long timeout) {
+        operationTimeout = timeout;
+    }
+
+    public long getOperationTimeout() {
+        return operationTimeout;
+    }
+
+    @SuppressWarnings("deprecation")
+    @NonNull
+    @Override
+    public List<String> getPluginMethods() {
+        return Arrays.asList("sendDebugSignal",
+                "setLogLevel",
+                "getLogLevel",
+                "setTraceEnabled",
+                "clearTrace",
+                "dumpTrace",
+                "getStats",
+                "enableEventQueue",
+                "disableEventQueue",
+                "pollEvents",
+                "resetStats",
+                "setStatsInterval",
+                "getStatsInterval",
+                "bluetoothStatus",
+                "scan",
+                "stopScan",
+                "hasLocationPermissions",
+                "locationStatus",
+                "connect",
+                "connectWhenSeen",
+                "connectInBackground",
+                "disconnect",
+                "setReconnectAttempts",
+                "getReconnectAttempts",
+                "setReconnectDelay",
+                "getReconnectDelay",
+                "setGattErrorRetries",
+                "getGattErrorRetries",
+                "isConnected",
+                "getConnectedDevices",
+                "listServicesAndCharacteristics",
+                "subscribeToCharacteristic",
+                "unsubscribeFromCharacteristic",
+                "writeBytesToCharacteristic",
+                "writeStringToCharacteristic",
+                "readFromCharacteristic",
+                "readFromHandle",
+                "addPolledCharacteristic",
+                "removePolledCharacteristic",
+                "clearPolledCharacteristics",
+                "setPollResultsInterval",
+                "getPollResultsInterval",
+                "writeBytesToHandle",
+                "subscribeToHandle",
+                "unsubscribeFromHandle",
+                "enableAdaptiveScan",
+                "disableAdaptiveScan",
+                "setScanPeriod",
+                "getScanPeriod",
+                "hasGetScanPeriod",
+                "setReportDuplicates",
+                "getReportDuplicates",
+                "setGattCacheEnabled",
+                "getGattCacheEnabled",
+                "getCachedServices",
+                "clearGattCache",
+                "setReportChangesOnly",
+                "getReportChangesOnly",
+                "setReportRssiDelta",
+                "getReportRssiDelta",
+                "setOperationTimeout",
+                "getOperationTimeout",
+                "setPreferredMtu",
+                "getPreferredMtu",
+                "getMtu",
+                "setPreferredConnectionPriority",
+                "getPreferredConnectionPriority",
+                "setPreferredPhy",
+                "getPreferredPhy",
+                "openChannel",
+                "sendToChannel",
+                "getChannelQueued",
+                "closeChannel",
+                "requestConnectionPriority",
+                "requestPhy",
+                "readPhy",
+                "getConnectionParameters",
+                "streamBytesToCharacteristic",
+                "enableNotificationBatching",
+                "disableNotificationBatching",
+                "enableScanCoalescing",
+                "disableScanCoalescing",
+                "addScanFilter",
+                "clearScanFilters",
+                "addAdvertisementFilter",
+                "clearAdvertisementFilters",
+                "setMessageFraming",
+                "clearMessageFraming",
+                "setValueDecoder",
+                "clearValueDecoder",
+                "enableLatestValueWrites",
+                "disableLatestValueWrites",
+                "setScanReportDelay",
+                "getScanReportDelay",
+                "setScanMatchMode",
+                "setKnownDevicesLimits",
+                "getKnownDevices",
+                "clearKnownDevices",
+                "setScanNumOfMatches");
+    }
+
+    public void sendDebugSignal(String s) {
+
+        emitSignal("_on_debug_message", s);
+        Log.d("BluetoothManager", s);
+
+    }
+
+    private void log(int level, String s) {
+
+        if (level <= logLevel) {
+            sendDebugSignal(s);
+        }
+    }
+
+    public void setLogLevel(int level) {
+        logLevel = level;
+    }
+
+    public int getLogLevel() {
+        return logLevel;
+    }
+
+    public void setTraceEnabled(boolean enabled) {
+        traceEnabled = enabled;
+    }
+
+    public void clearTrace() {
+        gattTrace.clear();
+    }
+
+    public org.godotengine.godot.Dictionary getStats() {
+
+        org.godotengine.godot.Dictionary stats = new org.godotengine.godot.Dictionary();
+        org.godotengine.godot.Dictionary devicesStats = new org.godotengine.godot.Dictionary();
+
+        for (Map.Entry<String, LinkMetrics> entry : linkMetrics.entrySet()) {
+            LinkMetrics metrics = entry.getValue();
+            org.godotengine.godot.Dictionary deviceStats = new org.godotengine.godot.Dictionary();
+
+            deviceStats.put("connections", metrics.connections.get());
+            deviceStats.put("notifications", metrics.notifications.get());
+            deviceStats.put("notification_bytes", metrics.notificationBytes.get());
+            deviceStats.put("reads", metrics.reads.get());
+            deviceStats.put("writes", metrics.writes.get());
+            deviceStats.put("failed_operations", metrics.failedOperations.get());
+            deviceStats.put("superseded_writes", metrics.supersededWrites.get());
+            deviceStats.put("read_latency", histogramToDictionary(metrics.readLatency));
+            deviceStats.put("write_latency", histogramToDictionary(metrics.writeLatency));
+            deviceStats.put("connect_latency", histogramToDictionary(metrics.connectLatency));
+            deviceStats.put("discovery_latency", histogramToDictionary(metrics.discoveryLatency));
+
+            devicesStats.put(entry.getKey(), deviceStats);
+        }
+
+        stats.put("elapsed", SystemClock.elapsedRealtime() - statsStartTime);
+        stats.put("scan_results", scanProcessor.received.get());
+        EventRing ring = eventRing;
+        stats.put("dropped_events", ring != null ? ring.dropped.get() : 0);
+        stats.put("devices", devicesStats);
+
+        return stats;
+    }
+
+    private org.godotengine.godot.Dictionary histogramToDictionary(LatencyHistogram histogram) {
+
+        org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+
+        data.put("count", histogram.getCount());
+        data.put("mean", histogram.getMean());
+        data.put("max", histogram.getMax());
+        data.put("bounds", LatencyHistogram.BOUNDS);
+        data.put("buckets", histogram.getBuckets());
+
+        return data;
+    }
+
+    public void resetStats() {
+
+        scanProcessor.received.set(0);
+        linkMetrics.clear();
+        statsStartTime = SystemClock.elapsedRealtime();
+
+        for (DeviceConnection connection : connections.values()) {
+            connection.metrics = getLinkMetrics(connection.address);
+        }
+    }
+
+    // getStats is sent by _on_stats every interval milliseconds, 0 stops it
+    public void setStatsInterval(long interval) {
+
+        handler.removeCallbacks(statsRunnable);
+        statsInterval = interval;
+
+        if (interval > 0) {
+            handler.postDelayed(statsRunnable, interval);
+        }
+    }
+
+    public long getStatsInterval() {
+        return statsInterval;
+    }
+
+    private final Runnable statsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            emitSignal("_on_stats", getStats());
+            handler.postDelayed(this, statsInterval);
+        }
+    };
+
+    private LinkMetrics getLinkMetrics(String address) {
+
+        LinkMetrics metrics = linkMetrics.get(address);
+        if (metrics == null) {
+            linkMetrics.putIfAbsent(address, new LinkMetrics());
+            metrics = linkMetrics.get(address);
+        }
+        return metrics;
+    }
+
+    // Returns the last GATT events, oldest first
+    public org.godotengine.godot.Dictionary dumpTrace() {
+
+        GattTrace.Snapshot snapshot = gattTrace.snapshot();
+
+        String[] events = new String[snapshot.count];
+        String[] addresses = new String[snapshot.count];
+        float[] ages = new float[snapshot.count];
+        long now = SystemClock.elapsedRealtimeNanos();
+
+        for (int i = 0; i < snapshot.count; i++) {
+            events[i] = GattTrace.eventName(snapshot.events[i]);
+            addresses[i] = DeviceRegistry.longToAddress(snapshot.addresses[i]);
+            ages[i] = (now - snapshot.times[i]) / 1000000f;
+        }
+
+        org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+
+        data.put("count", snapshot.count);
+        data.put("events", events);
+        data.put("addresses", addresses);
+        data.put("ages", ages);
+        data.put("handles", snapshot.handles);
+        data.put("statuses", snapshot.statuses);
+        data.put("lengths", snapshot.lengths);
+
+        return data;
+    }
+
+    private org.godotengine.godot.Dictionary deviceToDictionary(Advertisement device) {
+
+        org.godotengine.godot.Dictionary deviceData = new org.godotengine.godot.Dictionary();
+
+        deviceData.put("name", device.name);
+        deviceData.put("address", device.address);
+        deviceData.put("rssi", device.rssi);
+        deviceData.put("manufacturerData", device.scanRecord);
+
+        AdvertisementData data = device.getData();
+
+        org.godotengine.godot.Dictionary manufacturerData = new org.godotengine.godot.Dictionary();
+        for (Map.Entry<Integer, byte[]> entry : data.manufacturerData.entrySet()) {
+            manufacturerData.put(Integer.toString(entry.getKey()), entry.getValue());
+        }
+
+        org.godotengine.godot.Dictionary serviceData = new org.godotengine.godot.Dictionary();
+        for (Map.Entry<String, byte[]> entry : data.serviceData.entrySet()) {
+            serviceData.put(entry.getKey(), entry.getValue());
+        }
+
+        deviceData.put("manufacturer_data", manufacturerData);
+        deviceData.put("service_data", serviceData);
+        deviceData.put("service_uuids", data.serviceUuids.toArray(new String[0]));
+        deviceData.put("flags", data.flags);
+        if (data.txPower != AdvertisementData.NO_TX_POWER) {
+            deviceData.put("tx_power", data.txPower);
+        }
+
+        return deviceData;
+    }
+
+    private void sendNewDevice(Advertisement newDevice) {
+
+        emitSignal("_on_device_found", deviceToDictionary(newDevice));
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    @NonNull
+    @Override
+    public Set<SignalInfo> getPluginSignals() {
+        Set<SignalInfo> signals = new ArraySet<>();
+
+        signals.add(new SignalInfo("_on_debug_message", String.class));
+        signals.add(new SignalInfo("_on_device_found", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_bluetooth_status_change", String.class));
+        signals.add(new SignalInfo("_on_location_status_change", String.class));
+        signals.add(new SignalInfo("_on_connection_status_change", String.class, String.class));
+        signals.add(new SignalInfo("_on_characteristic_finding", String.class, String.class));
+        signals.add(new SignalInfo("_on_characteristic_found", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_characteristic_read", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_scan_stopped", String.class));
+        signals.add(new SignalInfo("_on_operation_complete", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_characteristic_batch", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_mtu_changed", Integer.class, String.class));
+        signals.add(new SignalInfo("_on_stream_progress", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_connection_parameters_change", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_stats", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_services_ready", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_reconnecting", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_poll_results", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_message", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_message_error", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_channel_state", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_channel_data", org.godotengine.godot.Dictionary.class));
+        signals.add(new SignalInfo("_on_devices_updated", org.godotengine.godot.Dictionary.class));
+        return signals;
+    }
+
+    @Override
+    public void onGLDrawFrame(GL10 gl) {
+
+        // Batches with no interval are sent once per frame, the render thread only asks for it
+        if ((notificationBatching && notificationBatchInterval == 0)
+                || (pollResultsInterval == 0 && !poller.isEmpty())) {
+            handler.post(frameFlushRunnable);
+        }
+    }
+
+    private final Runnable frameFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (notificationBatching && notificationBatchInterval == 0) {
+                flushNotificationBatches();
+            }
+            if (pollResultsInterval == 0) {
+                flushPollResults();
+            }
+        }
+    };
+
+    // Reads the characteristic rate times per second, for devices that cannot notify it. The values
+    // read are sent together by _on_poll_results. Reads are only sent while the device is
+    // connected, the characteristic is polled again when it reconnects
+    public boolean addPolledCharacteristic(int handle, double rate) {
+
+        CharacteristicHandles.Entry entry = characteristicHandles.get(handle);
+        if (entry == null || rate <= 0) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Cannot poll handle " + handle);
+            }
+            return false;
+        }
+
+        poller.add(handle, entry.connection.address, (long) (1000 / rate), SystemClock.elapsedRealtime());
+        schedulePoll();
+        return true;
+    }
+
+    public boolean removePolledCharacteristic(int handle) {
+        return poller.remove(handle);
+    }
+
+    public void clearPolledCharacteristics() {
+
+        poller.clear();
+        handler.removeCallbacks(pollRunnable);
+    }
+
+    // Values read by the poller are sent every interval milliseconds, 0 means once per frame
+    public void setPollResultsInterval(long interval) {
+
+        handler.removeCallbacks(pollResultsRunnable);
+        pollResultsInterval = interval;
+        if (interval > 0) {
+            handler.postDelayed(pollResultsRunnable, interval);
+        }
+    }
+
+    public long getPollResultsInterval() {
+        return pollResultsInterval;
+    }
+
+    private final Runnable pollRunnable = new Runnable() {
+        @Override
+        public void run() {
+
+            for (CharacteristicPoller.Entry entry : poller.due(SystemClock.elapsedRealtime())) {
+                CharacteristicHandles.Entry target = characteristicHandles.get(entry.handle);
+                if (target == null) {
+                    poller.onReadComplete(entry.address);
+                    continue;
+                }
+
+                GattOperation read = GattOperation.read(target.characteristic);
+                read.pollHandle = entry.handle;
+                target.connection.operationQueue.enqueue(read);
+            }
+
+            schedulePoll();
+        }
+    };
+
+    private void schedulePoll() {
+
+        handler.removeCallbacks(pollRunnable);
+
+        long next = poller.nextRead();
+        if (next != Long.MAX_VALUE) {
+            handler.postDelayed(pollRunnable, Math.max(0, next - SystemClock.elapsedRealtime()));
+        }
+    }
+
+    private final Runnable pollResultsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPollResults();
+            handler.postDelayed(this, pollResultsInterval);
+        }
+    };
+
+    private void flushPollResults() {
+
+        NotificationBatcher.Batch batch = pollResults.flush();
+        if (batch == null) {
+            return;
+        }
+
+        int[] handles = new int[batch.sources.length];
+        for (int i = 0; i < batch.sources.length; i++) {
+            handles[i] = (Integer) batch.sources[i];
+        }
+
+        org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+
+        data.put("count", batch.count);
+        data.put("handles", handles);
+        data.put("sources", batch.sourceIndex);
+        data.put("bytes", batch.bytes);
+        data.put("lengths", batch.lengths);
+        data.put("start_time", batch.startTime / 1000000);
+        data.put("timestamps", batch.timestamps);
+
+        emitSignal("_on_poll_results", data);
+    }
+
+    // Signals are not emitted anymore, they are queued until GDScript takes them with pollEvents.
+    // The queue holds capacity events, policy decides what happens when it is full, see EventRing
+    public void enableEventQueue(int capacity, int policy) {
+
+        if (capacity <= 0 || policy < EventRing.DROP_NEWEST || policy > EventRing.REPORT_DROPS) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Invalid event queue " + capacity + " " + policy);
+            }
+            return;
+        }
+        eventRing = new EventRing(capacity, policy);
+    }
+
+    // Events still in the queue are dropped
+    public void disableEventQueue() {
+        eventRing = null;
+    }
+
+    // Returns up to max events, oldest first. Every event is an array with the signal name and
+    // its arguments. Must always be called from the same thread
+    public Object[] pollEvents(int max) {
+
+        EventRing ring = eventRing;
+        if (ring == null || max <= 0) {
+            return new Object[0];
+        }
+
+        Object[] events = new Object[Math.min(max, ring.capacity)];
+        int count = ring.poll(events, events.length);
+
+        for (int i = 0; i < count; i++) {
+            if (events[i] instanceof EventRing.Overflow) {
+                events[i] = new Object[]{"_on_events_dropped", ((EventRing.Overflow) events[i]).count};
+            }
+        }
+
+        return count == events.length ? events : Arrays.copyOf(events, count);
+    }
+
+    // Every signal goes through here. The callbacks can come from several threads, they take
+    // turns to offer, pollEvents never waits for them
+    @Override
+    protected void emitSignal(String signal, Object... args) {
+
+        EventRing ring = eventRing;
+        if (ring == null) {
+            super.emitSignal(signal, args);
+            return;
+        }
+
+        Object[] event = new Object[args.length + 1];
+        event[0] = signal;
+        System.arraycopy(args, 0, event, 1, args.length);
+
+        synchronized (ring) {
+            ring.offer(event);
+        }
+    }
+
+    // Notifications will be sent together by _on_characteristic_batch, every interval milliseconds
+    // (0 means once per frame) or as soon as maxSamples notifications are waiting (0 means no limit)
+    public void enableNotificationBatching(final long interval, final int maxSamples) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                startNotificationBatching(interval, maxSamples);
+            }
+        });
+    }
+
+    public void disableNotificationBatching() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopNotificationBatching();
+            }
+        });
+    }
+
+    private void startNotificationBatching(long interval, int maxSamples) {
+
+        stopNotificationBatching();
+
+        notificationBatchInterval = interval;
+        notificationBatchMaxSamples = maxSamples;
+        notificationBatching = true;
+
+        for (DeviceConnection connection : connections.values()) {
+            connection.notificationBatcher = new NotificationBatcher(maxSamples);
+        }
+
+        if (interval > 0) {
+            handler.postDelayed(notificationFlushRunnable, interval);
+        }
+    }
+
+    private void stopNotificationBatching() {
+
+        if (notificationBatching) {
+            handler.removeCallbacks(notificationFlushRunnable);
+            flushNotificationBatches();
+            notificationBatching = false;
+
+            for (DeviceConnection connection : connections.values()) {
+                connection.notificationBatcher = null;
+            }
+        }
+    }
+
+    private final Runnable notificationFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushNotificationBatches();
+            handler.postDelayed(this, notificationBatchInterval);
+        }
+    };
+
+    private void flushNotificationBatches() {
+
+        for (DeviceConnection connection : connections.values()) {
+            flushNotificationBatch(connection);
+        }
+    }
+
+    private void flushNotificationBatch(DeviceConnection connection) {
+
+        NotificationBatcher batcher = connection.notificationBatcher;
+        if (batcher == null) {
+            return;
+        }
+
+        NotificationBatcher.Batch batch = batcher.flush();
+        if (batch == null) {
+            return;
+        }
+
+        String[] serviceUuids = new String[batch.sources.length];
+        String[] characteristicUuids = new String[batch.sources.length];
+        int[] handles = new int[batch.sources.length];
+
+        for (int i = 0; i < batch.sources.length; i++) {
+            BluetoothGattCharacteristic c = (BluetoothGattCharacteristic) batch.sources[i];
+            serviceUuids[i] = c.getService().getUuid().toString();
+            characteristicUuids[i] = c.getUuid().toString();
+            handles[i] = connection.getHandle(c);
+        }
+
+        org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+
+        data.put("address", connection.address);
+        data.put("count", batch.count);
+        data.put("service_uuids", serviceUuids);
+        data.put("characteristic_uuids", characteristicUuids);
+        data.put("handles", handles);
+        data.put("sources", batch.sourceIndex);
+        data.put("bytes", batch.bytes);
+        data.put("lengths", batch.lengths);
+        data.put("start_time", batch.startTime / 1000000);
+        data.put("timestamps", batch.timestamps);
+
+        emitSignal("_on_characteristic_batch", data);
+    }
+
+    // Devices already found are sent together by _on_devices_updated every tick milliseconds,
+    // and each device at most once every minInterval milliseconds
+    public void enableScanCoalescing(long tick, long minInterval) {
+
+        disableScanCoalescing();
+
+        scanCoalescingTick = tick;
+        scanProcessor.coalescer = new ScanCoalescer<Advertisement>(minInterval);
+        handler.postDelayed(scanCoalescingRunnable, tick);
+    }
+
+    public void disableScanCoalescing() {
+
+        if (scanProcessor.coalescer != null) {
+            handler.removeCallbacks(scanCoalescingRunnable);
+            scanProcessor.coalescer = null;
+        }
+    }
+
+    private final Runnable scanCoalescingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendUpdatedDevices();
+            handler.postDelayed(this, scanCoalescingTick);
+        }
+    };
+
+    private void sendUpdatedDevices() {
+
+        ScanCoalescer<Advertisement> coalescer = scanProcessor.coalescer;
+        if (coalescer == null) {
+            return;
+        }
+
+        Map<String, Advertisement> changed = coalescer.collect(SystemClock.elapsedRealtime());
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        org.godotengine.godot.Dictionary snapshot = new org.godotengine.godot.Dictionary();
+        for (Map.Entry<String, Advertisement> entry : changed.entrySet()) {
+            snapshot.put(entry.getKey(), deviceToDictionary(entry.getValue()));
+        }
+
+        emitSignal("_on_devices_updated", snapshot);
+    }
+
+    // Scans are split in windows of window milliseconds, separated by pauses of pause milliseconds
+    // (0 scans without stopping). The mode of every window depends on the devices found in the
+    // previous ones and on the app being in foreground. The scan runs until stopScan, the scan
+    // period is not used. Takes effect on the next scan
+    public void enableAdaptiveScan(long window, long pause) {
+
+        scanScheduler.window = window;
+        scanScheduler.pause = pause;
+        adaptiveScan = true;
+    }
+
+    public void disableAdaptiveScan() {
+        adaptiveScan = false;
+    }
+
+    // End of a scan window, the scan goes on with the mode chosen for the next one
+    private final Runnable scanWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+
+            long found = scanProcessor.found.get();
+            int mode = scanScheduler.nextMode(found - windowStartFound);
+            windowStartFound = found;
+
+            if (scanScheduler.pause > 0) {
+                stopLeScan();
+                scanConfiguration.scanMode = mode;
+                handler.postDelayed(scanStartRunnable, scanScheduler.pause);
+            } else if (mode != scanConfiguration.scanMode || scanScheduler.needsRestart(SystemClock.elapsedRealtime())) {
+                if (logLevel >= LOG_VERBOSE) {
+                    log(LOG_VERBOSE, "Scan mode changed to " + mode);
+                }
+                stopLeScan();
+                scanConfiguration.scanMode = mode;
+                startLeScan();
+            } else {
+                scheduleWindowEnd();
+            }
+        }
+    };
+
+    private final Runnable scanStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startLeScan();
+        }
+    };
+
+    // Stops scanning after a predefined scan period.
+    private final Runnable scanTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scanning = false;
+            connectWhenSeenCriteria = null;
+            cancelScanTimers();
+
+            if (hasPermission(Manifest.permission.BLUETOOTH_SCAN)) {
+
+                log(LOG_ERROR,
+                        "Cannot stop a scan because you do not have Manifest.permission.BLUETOOTH_SCAN");
+                return;
+            }
+            stopLeScan();
+            emitSignal("_on_scan_stopped", "scanTimedOut");
+        }
+    };
+
+    public void scan() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                startScanning();
+            }
+        });
+    }
+
+    public void stopScan() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopScanning();
+            }
+        });
+    }
+
+    private void startScanning() {
+        if (hasLocationPermissions()) {
+            if (!scanning) {
+                scanning = true;
+                scanProcessor.namedOnly = !scanConfiguration.hasFilters();
+
+                if (adaptiveScan) {
+                    scanConfiguration.scanMode = scanScheduler.firstMode();
+                    windowStartFound = scanProcessor.found.get();
+                } else {
+                    scanConfiguration.scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+                    handler.postDelayed(scanTimeoutRunnable, ScanPeriod);
+                }
+                startLeScan();
+            }
+        } else {
+            log(LOG_ERROR, "Cannot start a scan because you do not have location permissions");
+        }
+    }
+
+    // Scans and connects to the first device that matches criteria, straight from the scan
+    // callback. The scan is stopped, and only the connection is reported. See
+    // AdvertisementFilter.fromDictionary for the criteria, stopScan cancels it
+    public boolean connectWhenSeen(org.godotengine.godot.Dictionary criteria) {
+
+        final AdvertisementFilter filter;
+        try {
+            filter = AdvertisementFilter.fromDictionary(criteria);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Invalid connection criteria: " + e.getMessage());
+            }
+            return false;
+        }
+        if (!filter.identifiesDevice()) {
+            // Would connect to whatever device is seen first
+            log(LOG_WARNING, "Invalid connection criteria: address, name, name_prefix, service_uuid, "
+                    + "service_data_uuid or manufacturer_id is needed");
+            return false;
+        }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                connectWhenSeenCriteria = filter;
+                startScanning();
+            }
+        });
+        return true;
+    }
+
+    private void stopScanning() {
+
+        connectWhenSeenCriteria = null;
+        if (scanning) {
+            scanning = false;
+            cancelScanTimers();
+            if (hasPermission(Manifest.permission.BLUETOOTH_SCAN)) {
+
+                log(LOG_ERROR, "Cannot stop a scan because you do not have Manifest.permission.BLUETOOTH_SCAN");
+                return;
+            }
+            //emitSignal("_on_scan_stopped", "stopScan");
+            stopLeScan();
+        }
+    }
+
+    // Starts as soon as Android allows it, starting too often would be silently ignored
+    private void startLeScan() {
+
+        long delay = scanScheduler.startDelay(SystemClock.elapsedRealtime());
+        if (delay > 0) {
+            if (logLevel >= LOG_INFO) {
+                log(LOG_INFO, "Scan delayed " + delay + " ms, Android allows " + ScanScheduler.MAX_STARTS + " scans every 30 seconds");
+            }
+            handler.postDelayed(scanStartRunnable, delay);
+            return;
+        }
+
+        scanScheduler.onStarted(SystemClock.elapsedRealtime());
+        leScanActive = true;
+        scanTransport.start(scanConfiguration, scanListener);
+
+        if (adaptiveScan) {
+            scheduleWindowEnd();
+        }
+    }
+
+    // A scan restarted in the middle of a window only scans for the rest of it
+    private void scheduleWindowEnd() {
+
+        long now = SystemClock.elapsedRealtime();
+        if (windowEnd <= now) {
+            windowEnd = now + scanScheduler.window;
+        }
+        handler.postDelayed(scanWindowRunnable, windowEnd - now);
+    }
+
+    private void stopLeScan() {
+
+        if (leScanActive) {
+            leScanActive = false;
+            scanTransport.stop();
+        }
+    }
+
+    private void cancelScanTimers() {
+
+        handler.removeCallbacks(scanTimeoutRunnable);
+        handler.removeCallbacks(scanWindowRunnable);
+        handler.removeCallbacks(scanStartRunnable);
+        windowEnd = 0;
+    }
+
+    private final ScanTransport.Listener scanListener = new ScanTransport.Listener() {
+        @Override
+        public void onAdvertisement(Advertisement advertisement) {
+
+            // Results flushed by the transport after the scan was stopped
+            if (!scanning) {
+                return;
+            }
+
+            // Results arrive on the bluetooth thread, the connection starts before the next one.
+            // Devices already connected or connecting are left for the scan, openConnection would
+            // ignore them and nothing would be reported
+            AdvertisementFilter criteria = connectWhenSeenCriteria;
+            if (criteria != null && !connections.containsKey(advertisement.address) && criteria.matches(advertisement)) {
+                if (logLevel >= LOG_INFO) {
+                    log(LOG_INFO, "Found " + advertisement.address + " to connect to");
+                }
+                stopScanning();
+                openConnection(advertisement.address, false, 0, false);
+                return;
+            }
+
+            scanProcessor.process(advertisement, SystemClock.elapsedRealtime());
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            scanning = false;
+            connectWhenSeenCriteria = null;
+            leScanActive = false;
+            cancelScanTimers();
+            if (errorCode == ScanTransport.SCAN_FAILED_BLUETOOTH_OFF) {
+                log(LOG_ERROR, "Cannot scan while Bluetooth is off");
+            } else if (logLevel >= LOG_ERROR) {
+                log(LOG_ERROR, "Scan failed: " + errorCode);
+            }
+            emitSignal("_on_scan_stopped", "scanFailed");
+        }
+    };
+
+    // Status functions
+    public boolean bluetoothStatus() {
+
+        return mBluetoothAdapter.isEnabled();
+    }
+
+    public boolean locationStatus() {
+
+        Boolean gps_enabled = false;
+        Boolean network_enabled = false;
+
+        try {
+            gps_enabled = locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER);
+        } catch (Exception ex) {
+        }
+
+        try {
+            network_enabled = locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
+        } catch (Exception ex) {
+        }
+
+        if (!gps_enabled && !network_enabled) {
+            return false;
+        }
+        return true;
+    }
+
+    public void listServicesAndCharacteristics(String address) {
+
+        DeviceConnection connection = getConnectedDevice(address);
+        if (connection != null) {
+            // Discover services and characteristics for this device
+            if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR, "Cannot list services because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+
+                return;
+            }
+
+            connection.operationQueue.enqueue(GattOperation.discoverServices());
+        }
+    }
+
+    // This monitors the bluetooth status
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+
+            if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
+                final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
+                        BluetoothAdapter.ERROR);
+                switch (state) {
+                    case BluetoothAdapter.STATE_OFF:
+                        emitSignal("_on_bluetooth_status_change", "off");
+                        break;
+                    case BluetoothAdapter.STATE_TURNING_OFF:
+                        emitSignal("_on_bluetooth_status_change", "turning_off");
+                        break;
+                    case BluetoothAdapter.STATE_ON:
+                        emitSignal("_on_bluetooth_status_change", "on");
+                        resumeReconnects();
+                        break;
+                    case BluetoothAdapter.STATE_TURNING_ON:
+                        emitSignal("_on_bluetooth_status_change", "turning_on");
+                        break;
+                }
+            }
+        }
+    };
+
+    // This monitors the location status
+    private BroadcastReceiver mGpsSwitchStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+
+            if (action.equals(LocationManager.PROVIDERS_CHANGED_ACTION)) {
+
+                boolean isGpsEnabled = locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER);
+                boolean isNetworkEnabled = locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
+
+                if (isGpsEnabled) {
+
+                    emitSignal("_on_location_status_change", "on");
+                } else if (isNetworkEnabled) {
+
+                    emitSignal("_on_location_status_change", "on");
+                } else {
+
+                    emitSignal("_on_location_status_change", "off");
+                }
+            }
+        }
+    };
+
+    // Device connect call back, every connection has its own
+    private class GattCallback extends BluetoothGattCallback {
+
+        private final DeviceConnection connection;
+
+        GattCallback(DeviceConnection connection) {
+            this.connection = connection;
+        }
+
+        private void trace(int event, BluetoothGattCharacteristic characteristic, int status) {
+
+            if (traceEnabled) {
+                int handle = characteristic != null ? connection.getHandle(characteristic) : -1;
+                int length = 0;
+                if (event == GattTrace.NOTIFICATION || event == GattTrace.READ) {
+                    byte[] value = characteristic.getValue();
+                    length = value != null ? value.length : 0;
+                }
+
+                gattTrace.record(SystemClock.elapsedRealtimeNanos(), event, connection.addressValue, handle, status, length);
+            }
+        }
+
+        @Override
+        // Called when a devices connects or disconnects
+        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+
+            trace(newState == BluetoothProfile.STATE_CONNECTED ? GattTrace.CONNECTED : GattTrace.DISCONNECTED, null, status);
+
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+
+                switch (newState) {
+                    case BluetoothProfile.STATE_DISCONNECTED:
+
+                        boolean wasConnected = connection.connected;
+                        closeConnection(connection);
+                        emitSignal("_on_connection_status_change", "disconnected", connection.address);
+                        scheduleReconnect(connection, wasConnected, status);
+
+                        break;
+                    case BluetoothProfile.STATE_CONNECTED:
+                        connection.connected = true;
+                        connection.attempt = 0;
+                        connection.metrics.connections.incrementAndGet();
+                        connection.metrics.connectLatency.record(System.nanoTime() - connection.connectStartTime);
+
+                        // A bigger MTU lets every write and notification carry more data, it is
+                        // queued so it is negotiated before anything else is sent
+                        if (preferredMtu > 0) {
+                            connection.operationQueue.enqueue(GattOperation.requestMtu(preferredMtu));
+                        }
+
+                        // A shorter connection interval and the 2M PHY move more data with less latency
+                        // connection.gatt is not set yet when connectGatt answers on another thread
+                        if (preferredConnectionPriority >= 0) {
+                            gatt.requestConnectionPriority(preferredConnectionPriority);
+                        }
+                        if (preferredPhy > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                            gatt.setPreferredPhy(preferredPhy, preferredPhy, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                        }
+
+                        // Read services and characteristics
+                        listServicesAndCharacteristics(connection.address);
+
+                        emitSignal("_on_connection_status_change", "connected", connection.address);
+
+                        // A device known from the cache can be used before the discovery ends
+                        GattLayout stored = connection.storedLayout;
+                        if (stored != null) {
+                            sendServicesReady(connection, stored, true);
+                        }
+
+                        break;
+                }
+            } else { // There was an issue connecting
+
+                if (logLevel >= LOG_WARNING) {
+                    log(LOG_WARNING, "Connection error " + status + " with " + connection.address);
+                }
+
+                // Nothing queued will ever be answered if the link is gone
+                if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    boolean wasConnected = connection.connected;
+                    closeConnection(connection);
+                    emitSignal("_on_connection_status_change", Integer.toString(status), connection.address);
+                    scheduleReconnect(connection, wasConnected, status);
+                }
+            }
+        }
+
+        @Override
+        // Called after a BluetoothGatt.discoverServices() call
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+
+            trace(GattTrace.SERVICES_DISCOVERED, null, status);
+
+            // A failed discovery has no services. The cached layout and the calls waiting for the
+            // services are kept for the next discovery, which is tried once more
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                if (logLevel >= LOG_WARNING) {
+                    log(LOG_WARNING, "Service discovery failed on " + connection.address + ", status " + status);
+                }
+                if (connection.discoveryRetries < MAX_DISCOVERY_RETRIES) {
+                    connection.discoveryRetries++;
+                    connection.operationQueue.enqueue(GattOperation.discoverServices());
+                }
+                connection.operationQueue.onCallback(GattOperation.DISCOVER_SERVICES, null, status);
+                return;
+            }
+            connection.discoveryRetries = 0;
+
+            List<BluetoothGattService> services = gatt.getServices();
+
+            connection.cacheServices(services, characteristicHandles);
+            if (gattCacheEnabled) {
+                updateGattCache(connection, services);
+            } else {
+                sendServicesAndCharacteristics(connection, services);
+            }
+
+            for (Runnable call : connection.onServicesDiscovered()) {
+                call.run();
+            }
+
+            connection.operationQueue.onCallback(GattOperation.DISCOVER_SERVICES, null, status);
+        }
+
+        @Override
+        // Android 12 or newer, the device changed its services so they have to be discovered again
+        public void onServiceChanged(BluetoothGatt gatt) {
+
+            if (logLevel >= LOG_INFO) {
+                log(LOG_INFO, "Services changed on " + connection.address);
+            }
+
+            gattCache.remove(connection.address);
+            connection.storedLayout = null;
+            connection.operationQueue.enqueue(GattOperation.discoverServices());
+        }
+
+        @Override
+        // Result of a BluetoothGatt.setPreferredPhy() call, or a change made by the other device
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+
+            trace(GattTrace.PHY, null, status);
+
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                connection.txPhy = txPhy;
+                connection.rxPhy = rxPhy;
+            }
+            sendConnectionParameters(connection, status);
+        }
+
+        @Override
+        // Result of a BluetoothGatt.readPhy() call
+        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+
+            onPhyUpdate(gatt, txPhy, rxPhy, status);
+        }
+
+        // Called when the connection interval, latency or timeout change. This callback is hidden in
+        // the SDK so it cannot be marked as @Override, but the stack calls it since Android 8
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+
+            trace(GattTrace.CONNECTION_UPDATED, null, status);
+
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                connection.connectionInterval = interval;
+                connection.connectionLatency = latency;
+                connection.supervisionTimeout = timeout;
+            }
+            sendConnectionParameters(connection, status);
+        }
+
+        @Override
+        // Result of a BluetoothGatt.requestMtu() call
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+
+            trace(GattTrace.MTU, null, status);
+
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                connection.operationQueue.setMtu(mtu);
+                emitSignal("_on_mtu_changed", mtu, connection.address);
+            }
+
+            connection.operationQueue.onCallback(GattOperation.MTU, null, status);
+        }
+
+        @Override
+        // Result of a characteristic read operation
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                BluetoothGattCharacteristic characteristic,
+                // byte[] value, For Android Tiramisu we need this
+                int status) {
+
+            trace(GattTrace.READ, characteristic, status);
+
+            if (connection.checkingFirmware && characteristic.getUuid().toString().equals(FIRMWARE_REVISION)) {
+                connection.checkingFirmware = false;
+                checkFirmware(connection, gatt, status == BluetoothGatt.GATT_SUCCESS ? characteristic.getValue() : null);
+            }
+
+            if (logLevel >= LOG_VERBOSE) {
+                sendDebugSignal("onCharacteristicRead");
+
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    sendDebugSignal("onCharacteristicRead: SUCCESS");
+                } else {
+
+                    sendDebugSignal("onCharacteristicRead: " + Integer.toString(status));
+                }
+            }
+
+            connection.operationQueue.onCallback(GattOperation.READ, characteristic, status);
+        }
+
+        @Override
+        // Result of a characteristic read operation
+        public void onCharacteristicWrite(BluetoothGatt gatt,
                 BluetoothGattCharacteristic characteristic,
                 int status) {
-            sendDebugSignal("onCharacteristicWrite");
+            trace(GattTrace.WRITE, characteristic, status);
+
+            if (logLevel >= LOG_VERBOSE) {
+                sendDebugSignal("onCharacteristicWrite");
+
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    // broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                    sendDebugSignal("onCharacteristicWrite: SUCCESS");
+                }
+            }
+
+            connection.operationQueue.onCallback(GattOperation.WRITE, characteristic, status);
+        }
+
+        @Override
+        // Result of a subscribe or unsubscribe operation
+        public void onDescriptorWrite(BluetoothGatt gatt,
+                BluetoothGattDescriptor descriptor,
+                int status) {
+
+            trace(GattTrace.DESCRIPTOR_WRITE, descriptor.getCharacteristic(), status);
+            connection.operationQueue.onCallback(GattOperation.SUBSCRIBE, descriptor.getCharacteristic(), status);
+        }
+
+        @Override
+        // Result of a characteristic read/write operation
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic
+        // ,byte[] value, For Android Tiramisu we need this
+        ) {
+
+            trace(GattTrace.NOTIFICATION, characteristic, BluetoothGatt.GATT_SUCCESS);
+
+            byte[] value = characteristic.getValue();
+            connection.metrics.notifications.incrementAndGet();
+            connection.metrics.notificationBytes.addAndGet(value != null ? value.length : 0);
+
+            if (!messageFramers.isEmpty()) {
+                MessageFramer framer = messageFramers.get(connection.getHandle(characteristic));
+                if (framer != null) {
+                    framer.add(value);
+                    return;
+                }
+            }
+
+            NotificationBatcher batcher = connection.notificationBatcher;
+            if (batcher != null) {
+                if (batcher.add(characteristic, value, SystemClock.elapsedRealtimeNanos())) {
+                    flushNotificationBatch(connection);
+                }
+                return;
+            }
+
+            org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+
+            String characteristic_uuid = characteristic.getUuid().toString();
+            String service_uuid = characteristic.getService().getUuid().toString();
+
+            if (logLevel >= LOG_VERBOSE) {
+                sendDebugSignal("onCharacteristicChanged " + characteristic_uuid);
+            }
+
+            data.put("address", connection.address);
+            data.put("service_uuid", service_uuid);
+            data.put("characteristic_uuid", characteristic_uuid);
+            int handle = connection.getHandle(characteristic);
+            data.put("handle", handle);
+            data.put("bytes", value);
+            putDecodedValues(data, handle, value, value != null ? value.length : 0);
+
+            emitSignal("_on_characteristic_read", data);
+        }
+    }
+
+    public void connect(final String address) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopScanning();
+                openConnection(address, false, 0, false);
+            }
+        });
+    }
+
+    // The system connects when the device comes in range, it can take a long time but uses very
+    // little power and never times out. The link is opened again every time it is lost, until
+    // disconnect is called
+    public void connectInBackground(final String address) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                openConnection(address, true, 0, false);
+            }
+        });
+    }
+
+    public void disconnect(final String address) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeLink(address);
+            }
+        });
+    }
+
+    // Devices do not need to be scanned first, any valid address can be used
+    private void openConnection(String address, boolean autoConnect, int attempt, boolean reconnecting) {
+
+        // Connecting now replaces a connection that was going to be tried later
+        Runnable pending = pendingReconnects.remove(address);
+        if (pending != null) {
+            handler.removeCallbacks(pending);
+        }
+
+        if (!connections.containsKey(address)) {
+            if (logLevel >= LOG_INFO) {
+                log(LOG_INFO, "Connecting to device with address " + address);
+            }
+            if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR, "Cannot connect because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+
+                return;
+            }
+
+            if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+                if (logLevel >= LOG_WARNING) {
+                    log(LOG_WARNING, "Cannot connect to invalid address " + address);
+                }
+                return;
+            }
+            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+
+            DeviceConnection connection = new DeviceConnection(address,
+                    new GattOperationQueue(handler, operationTimeout, new OperationListener(address)));
+            connection.autoConnect = autoConnect;
+            connection.attempt = attempt;
+            connection.reconnecting = reconnecting;
+
+            if (notificationBatching) {
+                connection.notificationBatcher = new NotificationBatcher(notificationBatchMaxSamples);
+            }
+            connection.metrics = getLinkMetrics(address);
+            connection.connectStartTime = System.nanoTime();
+            if (gattCacheEnabled) {
+                connection.storedLayout = gattCache.load(address);
+            }
+
+            // Every device connects on its own, several connections can be in progress at the same time
+            connections.put(address, connection);
+            connection.gatt = connectGatt(device, autoConnect, new GattCallback(connection));
+            if (connection.gatt != null) {
+                connection.operationQueue.setTransport(new AndroidGattTransport(connection.gatt));
+            } else {
+                if (logLevel >= LOG_WARNING) {
+                    log(LOG_WARNING, "Cannot connect to " + address);
+                }
+                closeConnection(connection);
+                emitSignal("_on_connection_status_change", Integer.toString(ReconnectPolicy.GATT_ERROR), address);
+                scheduleReconnect(connection, false, ReconnectPolicy.GATT_ERROR);
+            }
+        }
+    }
+
+    // GATT callbacks are delivered on bluetoothThread when the system allows choosing the thread
+    private BluetoothGatt connectGatt(BluetoothDevice device, boolean autoConnect, BluetoothGattCallback callback) {
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return device.connectGatt(context, autoConnect, callback, BluetoothDevice.TRANSPORT_LE,
+                    BluetoothDevice.PHY_LE_1M_MASK, handler);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return device.connectGatt(context, autoConnect, callback, BluetoothDevice.TRANSPORT_LE);
+        }
+        return device.connectGatt(context, autoConnect, callback);
+    }
+
+    // Called after closing a link that was not closed by disconnect. Background connections are
+    // opened again at once, the system already waits for the device. Direct connections follow
+    // reconnectPolicy
+    private void scheduleReconnect(DeviceConnection connection, boolean wasConnected, int status) {
+
+        if (connection.disconnectRequested) {
+            return;
+        }
+
+        final String address = connection.address;
+        final boolean autoConnect = connection.autoConnect;
+        final boolean reconnecting = wasConnected || connection.reconnecting;
+        final int attempt = wasConnected ? 1 : connection.attempt + 1;
+
+        long delay = autoConnect ? reconnectPolicy.backgroundDelay(attempt, wasConnected)
+                : reconnectPolicy.delay(attempt, status, reconnecting);
+        if (delay < 0) {
+            if (attempt > 1 && logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Giving up connecting to " + address + " after " + (attempt - 1) + " attempts");
+            }
+            return;
+        }
+
+        if (logLevel >= LOG_INFO) {
+            log(LOG_INFO, "Connecting again to " + address + " in " + delay + " ms, attempt " + attempt);
+        }
+
+        Runnable reconnect = new Runnable() {
+            @Override
+            public void run() {
+                if (pendingReconnects.get(address) != this) {
+                    return;
+                }
+
+                // Kept in pendingReconnects until Bluetooth is on, see resumeReconnects
+                if (!mBluetoothAdapter.isEnabled()) {
+                    if (logLevel >= LOG_INFO) {
+                        log(LOG_INFO, "Waiting for Bluetooth to connect again to " + address);
+                    }
+                    return;
+                }
+
+                pendingReconnects.remove(address, this);
+                openConnection(address, autoConnect, attempt, reconnecting);
+            }
+        };
+        pendingReconnects.put(address, reconnect);
+        handler.postDelayed(reconnect, delay);
+
+        org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+        data.put("address", address);
+        data.put("attempt", attempt);
+        data.put("delay", delay);
+        data.put("status", status);
+        emitSignal("_on_reconnecting", data);
+    }
+
+    // Reconnects that came due while Bluetooth was off are tried now, the waiting ones at once
+    private void resumeReconnects() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable reconnect : pendingReconnects.values()) {
+                    handler.removeCallbacks(reconnect);
+                    handler.post(reconnect);
+                }
+            }
+        });
+    }
+
+    private void closeLink(final String address) {
+
+        // A connection waiting to be tried again is cancelled
+        Runnable pending = pendingReconnects.remove(address);
+        if (pending != null) {
+            handler.removeCallbacks(pending);
+            if (!connections.containsKey(address)) {
+                emitSignal("_on_connection_status_change", "disconnected", address);
+            }
+        }
+
+        final DeviceConnection connection = connections.get(address);
+        if (connection != null) {
+            if (logLevel >= LOG_INFO) {
+                log(LOG_INFO, "Disconnecting device " + address);
+            }
+            if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR, "Cannot disconnect because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+
+                return;
+            }
+
+            connection.disconnectRequested = true;
+            connection.gatt.disconnect();
+
+            if (connection.connected) {
+                // The callback is sometimes never called, the link is closed anyway so the
+                // BluetoothGatt is not leaked
+                handler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (connections.get(address) == connection) {
+                            if (logLevel >= LOG_WARNING) {
+                                log(LOG_WARNING, "No disconnection callback from " + address + ", closing the link");
+                            }
+                            closeConnection(connection);
+                            emitSignal("_on_connection_status_change", "disconnected", address);
+                        }
+                    }
+                }, DISCONNECT_TIMEOUT);
+            } else {
+                // Still connecting, there will be no callback when cancelling it
+                closeConnection(connection);
+                emitSignal("_on_connection_status_change", "disconnected", address);
+            }
+        }
+    }
+
+    // An L2CAP channel and the thread that opens it, stream is set once it is open
+    private class Channel {
+
+        final int id;
+        final String address;
+        volatile BluetoothSocket socket = null;
+        volatile ChannelStream stream = null;
+        volatile boolean closed = false;
+
+        Channel(int id, String address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        void close() {
+
+            // Waits for connectChannel to report the channel open, so closed is never sent first
+            ChannelStream s;
+            synchronized (this) {
+                closed = true;
+                s = stream;
+            }
+
+            if (s != null) {
+                s.close();
+                return;
+            }
+
+            // Still connecting, connect fails when the socket is closed
+            BluetoothSocket connecting = socket;
+            if (connecting != null) {
+                try {
+                    connecting.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    // Opens an LE L2CAP connection-oriented channel with the device, to send and receive data
+    // without the overhead of GATT. Needs Android 10 or newer. The device does not need to be
+    // connected with connect. Returns the channel id, the result is sent by _on_channel_state
+    public int openChannel(final String address, final int psm, final boolean secure) {
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            log(LOG_ERROR, "L2CAP channels need Android 10 or newer");
+            return -1;
+        }
+        if (lacksBluetoothPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+            log(LOG_ERROR, "Cannot open a channel because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+
+            return -1;
+        }
+        if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Cannot open a channel to invalid address " + address);
+            }
+            return -1;
+        }
+
+        final Channel channel = new Channel(nextChannelId.getAndIncrement(), address);
+        channels.put(channel.id, channel);
+
+        // connect blocks until the channel is open, which can take seconds
+        new Thread(new Runnable() {
+            @Override
+            @RequiresApi(api = Build.VERSION_CODES.Q)
+            public void run() {
+                connectChannel(channel, psm, secure);
+            }
+        }, "GodotBluetooth344 channel " + channel.id).start();
+
+        return channel.id;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void connectChannel(final Channel channel, int psm, boolean secure) {
+
+        ChannelStream stream;
+        try {
+            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(channel.address);
+            channel.socket = secure ? device.createL2capChannel(psm) : device.createInsecureL2capChannel(psm);
+            if (channel.closed) {
+                throw new IOException("Closed while connecting");
+            }
+            channel.socket.connect();
+
+            stream = new ChannelStream(channel.socket.getInputStream(), channel.socket.getOutputStream(),
+                    channel.socket, CHANNEL_BUFFER_SIZE, CHANNEL_QUEUE_SIZE, new ChannelListener(channel));
+        } catch (IOException e) {
+            onChannelClosed(channel, channel.closed ? null : e);
+            return;
+        }
+
+        // The stream is set before open is sent, so sendToChannel works from the handler of open.
+        // Sends are queued until the writer starts, and nothing is received before open is sent
+        synchronized (channel) {
+            if (!channel.closed) {
+                channel.stream = stream;
+                sendChannelState(channel, "open", "");
+            }
+        }
+
+        if (channel.stream == null) {
+            // closeChannel came while connecting and only closed the socket
+            stream.close();
+            return;
+        }
+        stream.start("GodotBluetooth344 channel " + channel.id);
+    }
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                // broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-                sendDebugSignal("onCharacteristicWrite: SUCCESS");
-            }
+    private class ChannelListener implements ChannelStream.Listener {
+
+        private final Channel channel;
+
+        ChannelListener(Channel channel) {
+            this.channel = channel;
         }
 
         @Override
-        // Result of a characteristic read/write operation
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic
-        // ,byte[] value, For Android Tiramisu we need this
-        ) {
+        public void onData(byte[] buffer, int length) {
 
             org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
 
-            String characteristic_uuid = characteristic.getUuid().toString();
-            String service_uuid = characteristic.getService().getUuid().toString();
-            byte[] bytes = characteristic.getValue();
+            data.put("channel", channel.id);
+            data.put("address", channel.address);
+            data.put("bytes", Arrays.copyOf(buffer, length));
 
-            sendDebugSignal("onCharacteristicChanged " + characteristic_uuid);
+            emitSignal("_on_channel_data", data);
+        }
 
-            data.put("service_uuid", service_uuid);
-            data.put("characteristic_uuid", characteristic_uuid);
-            data.put("bytes", bytes);
+        @Override
+        public void onClosed(IOException error) {
+            onChannelClosed(channel, channel.closed ? null : error);
+        }
+    }
 
-            emitSignal("_on_characteristic_read", data);
+    private void onChannelClosed(Channel channel, IOException error) {
+
+        channels.remove(channel.id);
+        if (error != null && logLevel >= LOG_WARNING) {
+            log(LOG_WARNING, "Channel " + channel.id + " with " + channel.address + " closed: " + error.getMessage());
         }
-    };
+        sendChannelState(channel, "closed", error != null ? String.valueOf(error.getMessage()) : "");
+    }
 
-    public void connect(String address) {
+    private void sendChannelState(Channel channel, String state, String error) {
 
-        if (!connected) {
-            sendDebugSignal("Connecting to device with address " + address);
-            stopScan();
-            if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
-                sendDebugSignal("Cannot connect because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+        org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+
+        data.put("channel", channel.id);
+        data.put("address", channel.address);
+        data.put("state", state);
+        data.put("error", error);
+
+        emitSignal("_on_channel_state", data);
+    }
+
+    // Queues data to be sent, returns false if the channel is not open or CHANNEL_QUEUE_SIZE
+    // sends are already waiting. Sends are never split or merged
+    public boolean sendToChannel(int id, byte[] data) {
+
+        Channel channel = channels.get(id);
+        ChannelStream stream = channel != null ? channel.stream : null;
+        return stream != null && stream.send(data);
+    }
+
+    // Number of sends waiting in the queue of the channel
+    public int getChannelQueued(int id) {
+
+        Channel channel = channels.get(id);
+        ChannelStream stream = channel != null ? channel.stream : null;
+        return stream != null ? stream.queued() : 0;
+    }
+
+    public void closeChannel(int id) {
+
+        Channel channel = channels.get(id);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // Asks for a connection interval, 0 balanced, 1 high (shortest interval) or 2 low power
+    public boolean requestConnectionPriority(String address, final int priority) {
+
+        DeviceConnection connection = getConnectedDevice(address);
+        if (connection != null) {
+            if (lacksBluetoothPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR, "Cannot change connection priority because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+
+                return false;
+            }
+            final BluetoothGatt gatt = connection.gatt;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!gatt.requestConnectionPriority(priority) && logLevel >= LOG_WARNING) {
+                        log(LOG_WARNING, "Connection priority " + priority + " refused");
+                    }
+                }
+            });
+            return true;
+        }
+        return false;
+    }
+
+    // Asks for the PHYs in the mask, 1 LE 1M, 2 LE 2M and 4 LE Coded. The PHYs in effect are
+    // reported by _on_connection_parameters_change
+    public void requestPhy(String address, final int phyMask) {
 
+        DeviceConnection connection = getConnectedDevice(address);
+        if (connection != null) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                log(LOG_WARNING, "Cannot change the PHY before Android 8");
                 return;
             }
-            bluetoothGatt = devices.get(address).getDevice().connectGatt(context, false, btleGattCallback);
+
+            if (lacksBluetoothPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR, "Cannot change the PHY because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+
+                return;
+            }
+            final BluetoothGatt gatt = connection.gatt;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                }
+            });
         }
     }
 
-    public void disconnect() {
+    // The result is reported by _on_connection_parameters_change
+    public void readPhy(String address) {
 
-        if (connected) {
-            sendDebugSignal("Disconnecting device");
-            if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
-                sendDebugSignal("Cannot disconnect because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+        DeviceConnection connection = getConnectedDevice(address);
+        if (connection != null) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                log(LOG_WARNING, "Cannot read the PHY before Android 8");
+                return;
+            }
+
+            if (lacksBluetoothPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR, "Cannot read the PHY because you do not have Manifest.permission.BLUETOOTH_CONNECT");
 
                 return;
             }
-            bluetoothGatt.disconnect();
+            final BluetoothGatt gatt = connection.gatt;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    gatt.readPhy();
+                }
+            });
+        }
+    }
+
+    public org.godotengine.godot.Dictionary getConnectionParameters(String address) {
+
+        DeviceConnection connection = getConnectedDevice(address);
+        if (connection == null) {
+            return new org.godotengine.godot.Dictionary();
+        }
+        return connectionParametersToDictionary(connection);
+    }
+
+    private org.godotengine.godot.Dictionary connectionParametersToDictionary(DeviceConnection connection) {
+
+        org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+
+        data.put("address", connection.address);
+        data.put("tx_phy", connection.txPhy);
+        data.put("rx_phy", connection.rxPhy);
+        data.put("interval", connection.connectionInterval * 1.25);
+        data.put("latency", connection.connectionLatency);
+        data.put("supervision_timeout", connection.supervisionTimeout * 10);
+        data.put("mtu", connection.operationQueue.getMtu());
+
+        return data;
+    }
+
+    private void sendConnectionParameters(DeviceConnection connection, int status) {
+
+        org.godotengine.godot.Dictionary data = connectionParametersToDictionary(connection);
+        data.put("status", status);
+
+        emitSignal("_on_connection_parameters_change", data);
+    }
+
+    public boolean isConnected(String address) {
+
+        return getConnectedDevice(address) != null;
+    }
+
+    public String[] getConnectedDevices() {
+
+        List<String> addresses = new ArrayList<String>();
+        for (DeviceConnection connection : connections.values()) {
+            if (connection.connected) {
+                addresses.add(connection.address);
+            }
+        }
+        return addresses.toArray(new String[0]);
+    }
+
+    private DeviceConnection getConnectedDevice(String address) {
+
+        DeviceConnection connection = connections.get(address);
+        if (connection != null && connection.connected) {
+            return connection;
+        }
+        return null;
+    }
+
+    // Releases everything related to a link that is gone
+    private void closeConnection(DeviceConnection connection) {
+
+        // A newer connection to the same address must be kept
+        if (!connections.remove(connection.address, connection)) {
+            return;
+        }
+
+        connection.connected = false;
+        flushNotificationBatch(connection);
+        connection.operationQueue.clear();
+        for (int handle : connection.getHandles()) {
+            MessageFramer framer = messageFramers.get(handle);
+            if (framer != null) {
+                framer.reset();
+            }
+        }
+        connection.clearServices();
+        characteristicHandles.release(connection);
+        if (connection.gatt != null) {
+            connection.gatt.close();
+        }
+    }
+
+    // Discovered devices are sent with a single _on_services_ready, and nothing is sent when the
+    // layout is the one already sent from the cache
+    private void updateGattCache(DeviceConnection connection, List<BluetoothGattService> services) {
+
+        GattLayout layout = new GattLayout();
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                layout.add(service.getUuid().toString(), characteristic.getUuid().toString(), characteristic.getProperties());
+            }
+        }
+
+        if (!layout.sameCharacteristics(connection.storedLayout)) {
+            sendServicesReady(connection, layout, false);
+        }
+        connection.discoveredLayout = layout;
+
+        // The layout is saved with the firmware revision, a new firmware may change the services
+        BluetoothGattCharacteristic firmware = connection.getCharacteristic(DEVICE_INFORMATION_SERVICE, FIRMWARE_REVISION);
+        if (firmware != null) {
+            connection.checkingFirmware = true;
+            GattOperation read = GattOperation.read(firmware);
+            read.internal = true;
+            connection.operationQueue.enqueue(read);
+        } else {
+            gattCache.save(connection.address, layout);
+        }
+    }
+
+    private void checkFirmware(DeviceConnection connection, BluetoothGatt gatt, byte[] value) {
+
+        GattLayout layout = connection.discoveredLayout;
+        GattLayout stored = connection.storedLayout;
+        String firmware = value != null ? new String(value, StandardCharsets.UTF_8).trim() : null;
+
+        if (stored != null && stored.firmware != null && firmware != null && !firmware.equals(stored.firmware)) {
+            if (logLevel >= LOG_INFO) {
+                log(LOG_INFO, "Firmware of " + connection.address + " changed to " + firmware + ", discovering services again");
+            }
+
+            // Android keeps its own copy of the services, it may be outdated too
+            gattCache.remove(connection.address);
+            connection.storedLayout = null;
+            refreshDeviceCache(gatt);
+            connection.operationQueue.enqueue(GattOperation.discoverServices());
+            return;
+        }
+
+        layout.firmware = firmware;
+        gattCache.save(connection.address, layout);
+    }
+
+    // BluetoothGatt.refresh is hidden, nothing is lost if it is not available
+    private void refreshDeviceCache(BluetoothGatt gatt) {
+
+        try {
+            gatt.getClass().getMethod("refresh").invoke(gatt);
+        } catch (Exception e) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Cannot refresh the services cache: " + e);
+            }
+        }
+    }
+
+    private org.godotengine.godot.Dictionary layoutToDictionary(String address, GattLayout layout, boolean cached) {
+
+        org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+
+        int size = layout.size();
+        String[] serviceUuids = layout.serviceUuids.toArray(new String[size]);
+        String[] characteristicUuids = layout.characteristicUuids.toArray(new String[size]);
+        int[] properties = new int[size];
+        int[] handles = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            properties[i] = layout.properties.get(i);
+            handles[i] = characteristicHandles.reserve(address, serviceUuids[i], characteristicUuids[i]);
         }
+
+        data.put("address", address);
+        data.put("cached", cached);
+        data.put("firmware", layout.firmware != null ? layout.firmware : "");
+        data.put("service_uuids", serviceUuids);
+        data.put("characteristic_uuids", characteristicUuids);
+        data.put("properties", properties);
+        data.put("handles", handles);
+
+        return data;
+    }
+
+    private void sendServicesReady(DeviceConnection connection, GattLayout layout, boolean cached) {
+        emitSignal("_on_services_ready", layoutToDictionary(connection.address, layout, cached));
     }
 
-    private void sendServicesAndCharacteristics(List<BluetoothGattService> gattServices) {
+    // Services and characteristics of known devices are saved, so they can be used as soon as
+    // the device connects again. They are sent with _on_services_ready instead of one
+    // _on_characteristic_found per characteristic
+    public void setGattCacheEnabled(boolean enabled) {
+        gattCacheEnabled = enabled;
+    }
+
+    public boolean getGattCacheEnabled() {
+        return gattCacheEnabled;
+    }
+
+    // Returns an empty Dictionary if the device is not cached
+    public org.godotengine.godot.Dictionary getCachedServices(String address) {
+
+        GattLayout layout = gattCache.load(address);
+        return layout != null ? layoutToDictionary(address, layout, true) : new org.godotengine.godot.Dictionary();
+    }
+
+    public void clearGattCache() {
+        gattCache.clear();
+    }
+
+    private void sendServicesAndCharacteristics(DeviceConnection connection, List<BluetoothGattService> gattServices) {
         if (gattServices == null)
             return;
 
-        emitSignal("_on_characteristic_finding", "processing");
+        emitSignal("_on_characteristic_finding", "processing", connection.address);
 
         // Loops through available GATT Services.
         for (BluetoothGattService gattService : gattServices) {
@@ -484,8 +2556,10 @@ public class BluetoothManager extends GodotPlugin {
 
                 final String characteristicUuid = gattCharacteristic.getUuid().toString();
 
+                characteristicData.put("address", connection.address);
                 characteristicData.put("service_uuid", serviceUuid);
                 characteristicData.put("characteristic_uuid", characteristicUuid);
+                characteristicData.put("handle", connection.getHandle(gattCharacteristic));
                 characteristicData.put("real_mask", gattCharacteristic.getProperties());
 
                 // Set all 3 properties to false
@@ -510,153 +2584,363 @@ public class BluetoothManager extends GodotPlugin {
             }
         }
 
-        emitSignal("_on_characteristic_finding", "done");
+        emitSignal("_on_characteristic_finding", "done", connection.address);
     }
 
-    // Read from characteristic
-    private void readFromCharacteristic(String serviceUUID, String characteristicUUID) {
+    // Reports the result of every queued operation of a device
+    private class OperationListener implements GattOperationQueue.Listener {
 
-        if (connected) {
+        private final String address;
+
+        OperationListener(String address) {
+            this.address = address;
+        }
 
-            UUID service = UUID.fromString(serviceUUID);
-            UUID characteristic = UUID.fromString(characteristicUUID);
+        @Override
+        public void onOperationComplete(GattOperation operation, int status) {
 
-            BluetoothGattService gattService = bluetoothGatt.getService(service);
-            if (gattService == null) {
-                sendDebugSignal("Service not found: " + serviceUUID);
+            // The result is handled by the callback, see checkFirmware
+            if (operation.internal) {
                 return;
             }
 
-            BluetoothGattCharacteristic gattCharacteristic = gattService.getCharacteristic(characteristic);
-            if (gattCharacteristic == null) {
-                sendDebugSignal("Characteristic not found: " + characteristicUUID);
+            LinkMetrics metrics = getLinkMetrics(address);
+            long latency = System.nanoTime() - operation.startTime;
+
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                metrics.failedOperations.incrementAndGet();
+            } else if (operation.type == GattOperation.READ) {
+                metrics.reads.incrementAndGet();
+                metrics.readLatency.record(latency);
+            } else if (operation.type == GattOperation.WRITE) {
+                metrics.writes.incrementAndGet();
+                metrics.writeLatency.record(latency);
+            } else if (operation.type == GattOperation.DISCOVER_SERVICES) {
+                metrics.discoveryLatency.record(latency);
+            }
+
+            // Polled values are sent together, the next read of the device can be sent now
+            if (operation.pollHandle >= 0) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    pollResults.add(operation.pollHandle, operation.characteristic.getValue(), System.nanoTime());
+                }
+                poller.onReadComplete(address);
+                schedulePoll();
                 return;
             }
 
-            if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
-                sendDebugSignal(
-                        "Cannot read characteristics because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+            if (operation.type == GattOperation.READ && status == BluetoothGatt.GATT_SUCCESS) {
+                sendReadValue(operation.characteristic);
+            }
+
+            org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+
+            data.put("address", address);
+            data.put("operation", operation.getName());
+            if (operation.characteristic != null) {
+                data.put("service_uuid", operation.characteristic.getService().getUuid().toString());
+                data.put("characteristic_uuid", operation.characteristic.getUuid().toString());
+            }
+            data.put("status", status);
+            data.put("success", status == BluetoothGatt.GATT_SUCCESS);
+            if (operation.latest) {
+                data.put("superseded", operation.superseded);
+            }
+
+            emitSignal("_on_operation_complete", data);
+        }
+
+        // Same format as the notifications
+        private void sendReadValue(BluetoothGattCharacteristic characteristic) {
+
+            DeviceConnection connection = connections.get(address);
+            org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+
+            data.put("address", address);
+            data.put("service_uuid", characteristic.getService().getUuid().toString());
+            data.put("characteristic_uuid", characteristic.getUuid().toString());
+            int handle = connection != null ? connection.getHandle(characteristic) : -1;
+            byte[] value = characteristic.getValue();
+            data.put("handle", handle);
+            data.put("bytes", value);
+            putDecodedValues(data, handle, value, value != null ? value.length : 0);
+
+            emitSignal("_on_characteristic_read", data);
+        }
+
+        @Override
+        public void onOperationProgress(GattOperation operation) {
 
+            // Reported every 5%, big streams have thousands of chunks
+            int progress = (int) (operation.offset * 20L / operation.value.length) * 5;
+            if (progress == operation.lastProgress) {
                 return;
             }
+            operation.lastProgress = progress;
+
+            org.godotengine.godot.Dictionary data = new org.godotengine.godot.Dictionary();
+
+            data.put("address", address);
+            data.put("service_uuid", operation.characteristic.getService().getUuid().toString());
+            data.put("characteristic_uuid", operation.characteristic.getUuid().toString());
+            data.put("sent", operation.offset);
+            data.put("total", operation.value.length);
+
+            emitSignal("_on_stream_progress", data);
+        }
+    }
+
+    // Finds a discovered characteristic of a connected device. If it is only known from the GATT
+    // cache, retry is run after the discovery and null is returned
+    private BluetoothGattCharacteristic findCharacteristic(DeviceConnection connection, String serviceUUID,
+                                                           String characteristicUUID, Runnable retry) {
 
-            boolean success = bluetoothGatt.readCharacteristic(gattCharacteristic);
-            if (!success) {
-                sendDebugSignal("Failed to read from characteristic: " + characteristicUUID);
+        BluetoothGattCharacteristic gattCharacteristic = connection.getCharacteristic(serviceUUID, characteristicUUID);
+        if (gattCharacteristic == null && !connection.deferUntilDiscovered(serviceUUID, characteristicUUID, retry)) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Characteristic not found: " + serviceUUID + " " + characteristicUUID);
             }
         }
+
+        return gattCharacteristic;
     }
 
-    // Write bytes to characteristic, automatically detects the write type
-    private void writeBytesToCharacteristic(String serviceUUID, String characteristicUUID, byte[] data) {
+    // Read from characteristic
+    public void readFromCharacteristic(final String address, final String serviceUUID, final String characteristicUUID) {
+
+        DeviceConnection connection = getConnectedDevice(address);
+        if (connection != null) {
 
-        if (connected) {
+            BluetoothGattCharacteristic c = findCharacteristic(connection, serviceUUID, characteristicUUID, new Runnable() {
+                @Override
+                public void run() {
+                    readFromCharacteristic(address, serviceUUID, characteristicUUID);
+                }
+            });
+            if (c == null) {
+                return;
+            }
 
-            UUID service = UUID.fromString(serviceUUID);
-            UUID characteristic = UUID.fromString(characteristicUUID);
+            if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR,
+                        "Cannot read characteristics because you do not have Manifest.permission.BLUETOOTH_CONNECT");
 
-            BluetoothGattCharacteristic c = bluetoothGatt.getService(service).getCharacteristic(characteristic);
-            c.setValue(data);
+                return;
+            }
 
-            if (c.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
+            connection.operationQueue.enqueue(GattOperation.read(c));
+        }
+    }
 
-                c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    // Write bytes to characteristic, the write type is the one the characteristic reports
+    public void writeBytesToCharacteristic(final String address, final String serviceUUID, final String characteristicUUID, final byte[] data) {
 
-            } else if (c.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+        DeviceConnection connection = getConnectedDevice(address);
+        if (connection != null) {
 
-                c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            BluetoothGattCharacteristic c = findCharacteristic(connection, serviceUUID, characteristicUUID, new Runnable() {
+                @Override
+                public void run() {
+                    writeBytesToCharacteristic(address, serviceUUID, characteristicUUID, data);
+                }
+            });
+            if (c == null) {
+                return;
             }
 
             if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
-                sendDebugSignal(
+                log(LOG_ERROR,
                         "Cannot write characteristic because you do not have Manifest.permission.BLUETOOTH_CONNECT");
 
                 return;
             }
-            bluetoothGatt.writeCharacteristic(c);
+
+            enqueueWrite(connection, c, connection.getHandle(c), data);
         }
     }
 
-    // Write bytes to characteristic, automatically detects the write type
-    private void writeStringToCharacteristic(String serviceUUID, String characteristicUUID, String data) {
+    // Write any amount of bytes to characteristic, split in chunks that fit the negotiated MTU
+    public void streamBytesToCharacteristic(final String address, final String serviceUUID, final String characteristicUUID, final byte[] data) {
+
+        DeviceConnection connection = getConnectedDevice(address);
+        if (connection != null) {
+
+            BluetoothGattCharacteristic c = findCharacteristic(connection, serviceUUID, characteristicUUID, new Runnable() {
+                @Override
+                public void run() {
+                    streamBytesToCharacteristic(address, serviceUUID, characteristicUUID, data);
+                }
+            });
+            if (c == null) {
+                return;
+            }
+
+            if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR,
+                        "Cannot write characteristic because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+
+                return;
+            }
+
+            // The chunk size is decided when the stream starts, after any pending MTU negotiation
+            connection.operationQueue.enqueue(GattOperation.stream(c, data));
+        }
+    }
 
-        if (connected) {
+    public int getMtu(String address) {
 
-            UUID service = UUID.fromString(serviceUUID);
-            UUID characteristic = UUID.fromString(characteristicUUID);
+        DeviceConnection connection = getConnectedDevice(address);
+        return connection != null ? connection.operationQueue.getMtu() : 0;
+    }
 
-            BluetoothGattCharacteristic c = bluetoothGatt.getService(service).getCharacteristic(characteristic);
-            c.setValue(data);
+    // Write a UTF-8 string to characteristic
+    public void writeStringToCharacteristic(String address, String serviceUUID, String characteristicUUID, String data) {
 
-            if (c.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
+        writeBytesToCharacteristic(address, serviceUUID, characteristicUUID, data.getBytes(StandardCharsets.UTF_8));
+    }
 
-                c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    // Subscribe to characteristic
+    public void subscribeToCharacteristic(final String address, final String serviceUUID, final String characteristicUUID) {
 
-            } else if (c.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+        DeviceConnection connection = getConnectedDevice(address);
+        if (connection != null) {
 
-                c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            BluetoothGattCharacteristic c = findCharacteristic(connection, serviceUUID, characteristicUUID, new Runnable() {
+                @Override
+                public void run() {
+                    subscribeToCharacteristic(address, serviceUUID, characteristicUUID);
+                }
+            });
+            if (c == null) {
+                return;
             }
 
             if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
-                sendDebugSignal(
-                        "Cannot write characteristic because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+                log(LOG_ERROR,
+                        "Cannot subscribe to characteristic because you do not have Manifest.permission.BLUETOOTH_CONNECT");
 
                 return;
             }
-            bluetoothGatt.writeCharacteristic(c);
+
+            connection.operationQueue.enqueue(GattOperation.subscribe(c));
         }
     }
 
-    // Subscribe to characteristic
-    private void subscribeToCharacteristic(String serviceUUID, String characteristicUUID) {
+    public void unsubscribeFromCharacteristic(final String address, final String serviceUUID, final String characteristicUUID) {
 
-        if (connected) {
+        DeviceConnection connection = getConnectedDevice(address);
+        if (connection != null) {
 
-            UUID service = UUID.fromString(serviceUUID);
-            UUID characteristic = UUID.fromString(characteristicUUID);
+            BluetoothGattCharacteristic c = findCharacteristic(connection, serviceUUID, characteristicUUID, new Runnable() {
+                @Override
+                public void run() {
+                    unsubscribeFromCharacteristic(address, serviceUUID, characteristicUUID);
+                }
+            });
+            if (c == null) {
+                return;
+            }
 
-            BluetoothGattCharacteristic c = bluetoothGatt.getService(service).getCharacteristic(characteristic);
             if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
-                sendDebugSignal(
-                        "Cannot subscribe to characteristic because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+                log(LOG_ERROR,
+                        "Cannot unsubscribe from characteristic because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+
+                return;
+            }
+
+            connection.operationQueue.enqueue(GattOperation.unsubscribe(c));
+        }
+    }
+
+    // Handle based variants, they skip the UUID and service lookup of every call. Handles are
+    // given by _on_characteristic_found
+
+    public void readFromHandle(int handle) {
+
+        CharacteristicHandles.Entry entry = characteristicHandles.get(handle);
+        if (entry != null) {
+            if (lacksBluetoothPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR,
+                        "Cannot read characteristics because you do not have Manifest.permission.BLUETOOTH_CONNECT");
+
+                return;
+            }
+
+            entry.connection.operationQueue.enqueue(GattOperation.read(entry.characteristic));
+        }
+    }
+
+    public void writeBytesToHandle(int handle, byte[] data) {
+
+        CharacteristicHandles.Entry entry = characteristicHandles.get(handle);
+        if (entry != null) {
+            if (lacksBluetoothPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR,
+                        "Cannot write characteristic because you do not have Manifest.permission.BLUETOOTH_CONNECT");
 
                 return;
             }
-            bluetoothGatt.setCharacteristicNotification(c, true);
 
-            // Set the Client Characteristic Config Descriptor to allow server initiated
-            // updates
-            UUID CONFIG_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
-            BluetoothGattDescriptor desc = c.getDescriptor(CONFIG_DESCRIPTOR);
-            desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            bluetoothGatt.writeDescriptor(desc);
+            enqueueWrite(entry.connection, entry.characteristic, handle, data);
+        }
+    }
+
+    // Only the newest value written to the characteristic waits to be sent, a write replaces the
+    // one still waiting instead of queueing after it. For control values sent faster than the link
+    // can take them. The device must be connected
+    public boolean enableLatestValueWrites(int handle) {
+
+        if (characteristicHandles.get(handle) == null) {
+            if (logLevel >= LOG_WARNING) {
+                log(LOG_WARNING, "Cannot enable latest value writes for handle " + handle);
+            }
+            return false;
+        }
+
+        latestValueWrites.add(handle);
+        return true;
+    }
+
+    public void disableLatestValueWrites(int handle) {
+        latestValueWrites.remove(handle);
+    }
+
+    private void enqueueWrite(DeviceConnection connection, BluetoothGattCharacteristic c, int handle, byte[] data) {
 
+        if (!latestValueWrites.contains(handle)) {
+            connection.operationQueue.enqueue(GattOperation.write(c, data));
+        } else if (!connection.operationQueue.enqueueLatest(GattOperation.write(c, data))) {
+            getLinkMetrics(connection.address).supersededWrites.incrementAndGet();
         }
     }
 
-    private void unsubscribeFromCharacteristic(String serviceUUID, String characteristicUUID) {
+    public void subscribeToHandle(int handle) {
 
-        if (connected) {
+        CharacteristicHandles.Entry entry = characteristicHandles.get(handle);
+        if (entry != null) {
+            if (lacksBluetoothPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR,
+                        "Cannot subscribe to characteristic because you do not have Manifest.permission.BLUETOOTH_CONNECT");
 
-            UUID service = UUID.fromString(serviceUUID);
-            UUID characteristic = UUID.fromString(characteristicUUID);
+                return;
+            }
 
-            // Set the Client Characteristic Config Descriptor to disable server initiated
-            // updates
-            UUID CONFIG_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
-            BluetoothGattCharacteristic c = bluetoothGatt.getService(service).getCharacteristic(characteristic);
+            entry.connection.operationQueue.enqueue(GattOperation.subscribe(entry.characteristic));
+        }
+    }
 
-            BluetoothGattDescriptor desc = c.getDescriptor(CONFIG_DESCRIPTOR);
-            desc.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+    public void unsubscribeFromHandle(int handle) {
 
-            if (hasPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
-                sendDebugSignal(
+        CharacteristicHandles.Entry entry = characteristicHandles.get(handle);
+        if (entry != null) {
+            if (lacksBluetoothPermission(Manifest.permission.BLUETOOTH_CONNECT)) {
+                log(LOG_ERROR,
                         "Cannot unsubscribe from characteristic because you do not have Manifest.permission.BLUETOOTH_CONNECT");
 
                 return;
             }
 
-            bluetoothGatt.writeDescriptor(desc);
+            entry.connection.operationQueue.enqueue(GattOperation.unsubscribe(entry.characteristic));
         }
     }
-}
\ No newline at end of file
+}
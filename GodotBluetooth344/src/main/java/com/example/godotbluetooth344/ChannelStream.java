@@ -0,0 +1,143 @@
+package com.example.godotbluetooth344;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Both directions of a connected socket, used for L2CAP channels. A reader thread delivers what
+// arrives in a buffer reused for every read, and a writer thread sends what is queued by send.
+// It only needs the streams, so it works with any socket
+class ChannelStream {
+
+    interface Listener {
+        // Called on the reader thread, the listener must copy what it keeps
+        void onData(byte[] buffer, int length);
+
+        // Called once, error is null when the stream was closed with close
+        void onClosed(IOException error);
+    }
+
+    private final InputStream input;
+    private final OutputStream output;
+    private final Closeable socket;
+    private final byte[] buffer;
+    private final BlockingQueue<byte[]> sendQueue;
+    private final Listener listener;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private Thread reader = null;
+    private Thread writer = null;
+
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+
+    // bufferSize is the most delivered by a single onData, queueSize the writes that can wait
+    ChannelStream(InputStream input, OutputStream output, Closeable socket, int bufferSize, int queueSize,
+                  Listener listener) {
+        this.input = input;
+        this.output = output;
+        this.socket = socket;
+        this.buffer = new byte[bufferSize];
+        this.sendQueue = new ArrayBlockingQueue<byte[]>(queueSize);
+        this.listener = listener;
+    }
+
+    synchronized void start(String name) {
+
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, name + " reader");
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, name + " writer");
+
+        reader.start();
+        writer.start();
+    }
+
+    // Returns false if the queue is full or the stream is closed, data must not be modified after
+    boolean send(byte[] data) {
+        return !closed.get() && sendQueue.offer(data);
+    }
+
+    int queued() {
+        return sendQueue.size();
+    }
+
+    void close() {
+        finish(null);
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    private void read() {
+
+        try {
+            while (!closed.get()) {
+                int length = input.read(buffer);
+                if (length < 0) {
+                    throw new EOFException("Closed by the device");
+                }
+
+                bytesReceived.addAndGet(length);
+                listener.onData(buffer, length);
+            }
+        } catch (IOException e) {
+            finish(e);
+        }
+    }
+
+    private void write() {
+
+        try {
+            while (!closed.get()) {
+                byte[] data = sendQueue.take();
+                output.write(data);
+                output.flush();
+                bytesSent.addAndGet(data.length);
+            }
+        } catch (InterruptedException e) {
+            // Closed while waiting for data
+        } catch (IOException e) {
+            finish(e);
+        }
+    }
+
+    // Closing the socket is what wakes up a reader blocked in read
+    private void finish(IOException error) {
+
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+
+        synchronized (this) {
+            if (writer != null) {
+                writer.interrupt();
+            }
+        }
+        sendQueue.clear();
+
+        listener.onClosed(error);
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.godotbluetooth344;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Gives every discovered characteristic an integer handle, so GDScript can use it instead of
+// the device address and the two UUIDs. The handle of a characteristic stays the same when
+// the device reconnects
+class CharacteristicHandles {
+
+    // Entries are replaced instead of modified, so callers can use them without holding the lock
+    static class Entry {
+        final int handle;
+        final DeviceConnection connection; // Null while the device is not connected
+        final BluetoothGattCharacteristic characteristic;
+
+        Entry(int handle, DeviceConnection connection, BluetoothGattCharacteristic characteristic) {
+            this.handle = handle;
+            this.connection = connection;
+            this.characteristic = characteristic;
+        }
+    }
+
+    // Key is "address/service_uuid/characteristic_uuid"
+    private final Map<String, Integer> handles = new HashMap<String, Integer>();
+    private Entry[] entries = new Entry[64];
+    private int count = 0;
+
+    synchronized int register(DeviceConnection connection, String serviceUuid, BluetoothGattCharacteristic characteristic) {
+
+        int handle = reserve(connection.address, serviceUuid, characteristic.getUuid().toString());
+        entries[handle] = new Entry(handle, connection, characteristic);
+
+        return handle;
+    }
+
+    // Returns the handle the characteristic has or will have once discovered
+    synchronized int reserve(String address, String serviceUuid, String characteristicUuid) {
+
+        String key = (address + "/" + serviceUuid + "/" + characteristicUuid).toLowerCase(Locale.ROOT);
+
+        Integer handle = handles.get(key);
+        if (handle == null) {
+            handle = count;
+            handles.put(key, handle);
+
+            if (count == entries.length) {
+                entries = Arrays.copyOf(entries, count * 2);
+            }
+            entries[handle] = new Entry(handle, null, null);
+            count++;
+        }
+
+        return handle;
+    }
+
+    // Returns null for unknown handles and for characteristics of devices that are not connected
+    synchronized Entry get(int handle) {
+
+        if (handle < 0 || handle >= count) {
+            return null;
+        }
+
+        Entry entry = entries[handle];
+        if (entry.connection == null || !entry.connection.connected) {
+            return null;
+        }
+        return entry;
+    }
+
+    // Called when a device disconnects, its handles are kept for the next connection
+    synchronized void release(DeviceConnection connection) {
+
+        for (int i = 0; i < count; i++) {
+            if (entries[i].connection == connection) {
+                entries[i] = new Entry(i, null, null);
+            }
+        }
+    }
+}
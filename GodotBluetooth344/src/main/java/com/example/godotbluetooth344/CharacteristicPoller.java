@@ -0,0 +1,94 @@
+package com.example.godotbluetooth344;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Decides which polled characteristics to read and when. A device reads one polled
+// characteristic at a time, the one whose read is the most overdue, so a device that cannot keep
+// up with the rates slows all its characteristics down by the same amount. Times are in
+// milliseconds
+class CharacteristicPoller {
+
+    static class Entry {
+        final int handle;
+        final String address;
+        final long interval;
+        long nextRead;
+
+        Entry(int handle, String address, long interval, long nextRead) {
+            this.handle = handle;
+            this.address = address;
+            this.interval = interval;
+            this.nextRead = nextRead;
+        }
+    }
+
+    private final Map<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>();
+    private final Set<String> reading = new HashSet<String>(); // Devices with a polled read in flight
+
+    synchronized void add(int handle, String address, long interval, long now) {
+        entries.put(handle, new Entry(handle, address, Math.max(interval, 1), now));
+    }
+
+    synchronized boolean remove(int handle) {
+        return entries.remove(handle) != null;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    // Returns the reads to send at now, at most one per device, and marks their devices as reading
+    // until onReadComplete
+    synchronized List<Entry> due(long now) {
+
+        Map<String, Entry> chosen = new HashMap<String, Entry>();
+        for (Entry entry : entries.values()) {
+            if (entry.nextRead > now || reading.contains(entry.address)) {
+                continue;
+            }
+
+            Entry other = chosen.get(entry.address);
+            if (other == null || entry.nextRead < other.nextRead) {
+                chosen.put(entry.address, entry);
+            }
+        }
+
+        List<Entry> reads = new ArrayList<Entry>(chosen.values());
+        for (Entry entry : reads) {
+            reading.add(entry.address);
+
+            // A read that is late does not make the next ones come sooner
+            entry.nextRead += entry.interval;
+            if (entry.nextRead <= now) {
+                entry.nextRead = now + entry.interval;
+            }
+        }
+        return reads;
+    }
+
+    synchronized void onReadComplete(String address) {
+        reading.remove(address);
+    }
+
+    // Time of the next read among the devices that are not reading, Long.MAX_VALUE if there is none
+    synchronized long nextRead() {
+
+        long next = Long.MAX_VALUE;
+        for (Entry entry : entries.values()) {
+            if (!reading.contains(entry.address)) {
+                next = Math.min(next, entry.nextRead);
+            }
+        }
+        return next;
+    }
+}
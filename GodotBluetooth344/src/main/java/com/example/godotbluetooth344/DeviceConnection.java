@@ -0,0 +1,126 @@
+package com.example.godotbluetooth344;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// State of the link with one device, BluetoothManager keeps one per address
+class DeviceConnection {
+
+    final String address;
+    final long addressValue; // The address packed in a long, used by the trace
+    final GattOperationQueue operationQueue;
+
+    // Written by the callbacks and read from GDScript, so they are volatile
+    volatile BluetoothGatt gatt = null;
+    volatile boolean connected = false;
+
+    // Link parameters in effect, as reported by the stack. 0 means not reported yet
+    volatile int txPhy = 0;
+    volatile int rxPhy = 0;
+    volatile int connectionInterval = 0; // In units of 1.25 ms
+    volatile int connectionLatency = 0; // In connection events
+    volatile int supervisionTimeout = 0; // In units of 10 ms
+
+    // How the link was opened, see BluetoothManager.scheduleReconnect
+    boolean autoConnect = false;
+    boolean reconnecting = false; // The device was connected before and lost the link
+    int attempt = 0; // Attempts made since the first connection failed or the link was lost
+    volatile boolean disconnectRequested = false;
+
+    volatile LinkMetrics metrics = null;
+    long connectStartTime = 0; // System.nanoTime() when the connection was requested
+
+    // GATT cache, see BluetoothManager.setGattCacheEnabled
+    volatile GattLayout storedLayout = null; // Read from the cache when connecting
+    volatile GattLayout discoveredLayout = null;
+    volatile boolean checkingFirmware = false;
+
+    private boolean servicesDiscovered = false;
+    int discoveryRetries = 0; // Failed service discoveries tried again in a row
+    private final List<Runnable> afterDiscovery = new ArrayList<Runnable>();
+
+    // Null when notifications of this device are not batched
+    volatile NotificationBatcher notificationBatcher = null;
+
+    // Discovered characteristics, key is "service_uuid/characteristic_uuid"
+    private final Map<String, BluetoothGattCharacteristic> characteristics =
+            new HashMap<String, BluetoothGattCharacteristic>();
+    private final Map<BluetoothGattCharacteristic, Integer> handles =
+            new HashMap<BluetoothGattCharacteristic, Integer>();
+
+    DeviceConnection(String address, GattOperationQueue operationQueue) {
+        this.address = address;
+        this.addressValue = DeviceRegistry.addressToLong(address);
+        this.operationQueue = operationQueue;
+    }
+
+    synchronized void cacheServices(List<BluetoothGattService> services, CharacteristicHandles characteristicHandles) {
+
+        characteristics.clear();
+        handles.clear();
+
+        for (BluetoothGattService service : services) {
+            String serviceUuid = service.getUuid().toString();
+
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                characteristics.put(key(serviceUuid, characteristic.getUuid().toString()), characteristic);
+                handles.put(characteristic, characteristicHandles.register(this, serviceUuid, characteristic));
+            }
+        }
+    }
+
+    // Returns -1 for characteristics that were not discovered
+    synchronized int getHandle(BluetoothGattCharacteristic characteristic) {
+
+        Integer handle = handles.get(characteristic);
+        return handle != null ? handle : -1;
+    }
+
+    synchronized List<Integer> getHandles() {
+        return new ArrayList<Integer>(handles.values());
+    }
+
+    synchronized BluetoothGattCharacteristic getCharacteristic(String serviceUUID, String characteristicUUID) {
+        return characteristics.get(key(serviceUUID, characteristicUUID));
+    }
+
+    // A characteristic known from the cache can be used before it is discovered, the call is kept
+    // and made again after the discovery. Returns false if the call cannot wait
+    synchronized boolean deferUntilDiscovered(String serviceUUID, String characteristicUUID, Runnable call) {
+
+        GattLayout layout = storedLayout;
+        if (servicesDiscovered || layout == null || !layout.contains(serviceUUID, characteristicUUID)) {
+            return false;
+        }
+
+        afterDiscovery.add(call);
+        return true;
+    }
+
+    // Returns the calls that were waiting for the discovery
+    synchronized List<Runnable> onServicesDiscovered() {
+
+        servicesDiscovered = true;
+
+        List<Runnable> calls = new ArrayList<Runnable>(afterDiscovery);
+        afterDiscovery.clear();
+        return calls;
+    }
+
+    synchronized void clearServices() {
+        characteristics.clear();
+        handles.clear();
+        afterDiscovery.clear();
+    }
+
+    private static String key(String serviceUUID, String characteristicUUID) {
+        return (serviceUUID + "/" + characteristicUUID).toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.godotbluetooth344;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Devices found while scanning. It has a maximum size and forgets the devices that have not
+// been seen for a while, phones with random addresses would make it grow forever otherwise
+class DeviceRegistry {
+
+    static class Record {
+        final long address;
+        String name;
+        int rssi;
+        long lastSeen; // Milliseconds, same clock as the one given to update
+
+        // Last advertisement reported, see reportIfChanged
+        int reportedHash;
+        int reportedRssi;
+        boolean reported;
+
+        Record(long address) {
+            this.address = address;
+        }
+    }
+
+    interface EvictionListener {
+        void onEvicted(String address);
+    }
+
+    private int capacity;
+    private long ttl; // 0 means devices never expire
+    private EvictionListener evictionListener = null;
+
+    // Access ordered, the eldest entry is the device seen least recently
+    private final LinkedHashMap<Long, Record> records = new LinkedHashMap<Long, Record>(16, 0.75f, true);
+
+    DeviceRegistry(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+
+    synchronized void setLimits(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+
+    synchronized void setEvictionListener(EvictionListener listener) {
+        evictionListener = listener;
+    }
+
+    // Records a sighting, returns true if the device was not known
+    synchronized boolean update(String address, String name, int rssi, long now) {
+
+        long key = addressToLong(address);
+
+        Record record = records.get(key);
+        boolean isNew = record == null;
+        if (isNew) {
+            record = new Record(key);
+            records.put(key, record);
+        }
+
+        if (name != null) {
+            record.name = name;
+        }
+        record.rssi = rssi;
+        record.lastSeen = now;
+
+        evict(now);
+
+        return isNew;
+    }
+
+    // Returns true if payloadHash differs from the one of the last advertisement reported, or the
+    // RSSI moved rssiDelta or more since then (0 ignores the RSSI). The values are then kept as
+    // the last reported. Unknown devices return false
+    synchronized boolean reportIfChanged(String address, int payloadHash, int rssi, int rssiDelta) {
+
+        Record record = records.get(addressToLong(address));
+        if (record == null) {
+            return false;
+        }
+
+        boolean changed = !record.reported || record.reportedHash != payloadHash
+                || (rssiDelta > 0 && Math.abs(rssi - record.reportedRssi) >= rssiDelta);
+
+        if (changed) {
+            record.reportedHash = payloadHash;
+            record.reportedRssi = rssi;
+            record.reported = true;
+        }
+        return changed;
+    }
+
+    synchronized boolean contains(String address) {
+        return records.containsKey(addressToLong(address));
+    }
+
+    // Copies of the devices known at now, the expired ones are forgotten first so they are not
+    // returned after the scan stops
+    synchronized List<Record> snapshot(long now) {
+
+        evict(now);
+
+        List<Record> copy = new ArrayList<Record>(records.size());
+        for (Record record : records.values()) {
+            Record r = new Record(record.address);
+            r.name = record.name;
+            r.rssi = record.rssi;
+            r.lastSeen = record.lastSeen;
+            copy.add(r);
+        }
+        return copy;
+    }
+
+    synchronized int size() {
+        return records.size();
+    }
+
+    synchronized void clear() {
+        records.clear();
+    }
+
+    // Removes the devices over capacity and the expired ones, both are the least recently seen
+    private void evict(long now) {
+
+        Iterator<Map.Entry<Long, Record>> it = records.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Record eldest = it.next().getValue();
+
+            boolean overCapacity = capacity > 0 && records.size() > capacity;
+            boolean expired = ttl > 0 && now - eldest.lastSeen > ttl;
+            if (!overCapacity && !expired) {
+                return;
+            }
+
+            it.remove();
+            if (evictionListener != null) {
+                evictionListener.onEvicted(longToAddress(eldest.address));
+            }
+        }
+    }
+
+    // "AA:BB:CC:DD:EE:FF" to 0xAABBCCDDEEFF, without allocating
+    static long addressToLong(String address) {
+
+        long value = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                value = (value << 4) | digit;
+            }
+        }
+        return value;
+    }
+
+    static String longToAddress(long address) {
+
+        StringBuilder builder = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int b = (int) ((address >> shift) & 0xFF);
+            builder.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)));
+            builder.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            if (shift > 0) {
+                builder.append(':');
+            }
+        }
+        return builder.toString();
+    }
+}
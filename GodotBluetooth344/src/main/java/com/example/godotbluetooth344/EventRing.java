@@ -0,0 +1,128 @@
+package com.example.godotbluetooth344;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded queue of events between one producer and one consumer, neither of them ever waits for
+// the other. Every slot carries the sequence number of the event it holds, so the consumer
+// notices when the producer overwrote an event it had not taken yet. Only one thread can call
+// offer at a time, and only one thread can call poll at a time
+class EventRing {
+
+    static final int DROP_NEWEST = 0; // An event offered to a full ring is dropped
+    static final int DROP_OLDEST = 1; // It replaces the oldest event not taken yet
+    static final int REPORT_DROPS = 2; // It is dropped, and an Overflow is queued where the gap is
+
+    // Takes the place of the events dropped with REPORT_DROPS
+    static class Overflow {
+        final long count;
+
+        Overflow(long count) {
+            this.count = count;
+        }
+    }
+
+    final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Object> events;
+    private final AtomicLongArray sequences; // Sequence number + 1 of the event in every slot, 0 while written
+
+    private final AtomicLong head = new AtomicLong(); // Next event to take, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); // Next event to write, written by the producer
+    private long unreported = 0; // Producer only, drops waiting for an Overflow
+
+    final AtomicLong dropped = new AtomicLong();
+    volatile int policy;
+
+    // capacity is rounded up to a power of two
+    EventRing(int capacity, int policy) {
+
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.events = new AtomicReferenceArray<Object>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.policy = policy;
+    }
+
+    // Returns false if the event was dropped
+    boolean offer(Object event) {
+
+        long t = tail.get();
+
+        if (unreported > 0 && policy == REPORT_DROPS) {
+            if (t - head.get() >= capacity) {
+                unreported++;
+                dropped.incrementAndGet();
+                return false;
+            }
+            write(t++, new Overflow(unreported));
+            unreported = 0;
+        }
+
+        if (t - head.get() >= capacity) {
+            if (policy != DROP_OLDEST) {
+                if (policy == REPORT_DROPS) {
+                    unreported++;
+                }
+                dropped.incrementAndGet();
+                return false;
+            }
+            // The consumer counts the event overwritten when it finds it missing
+        }
+
+        write(t, event);
+        return true;
+    }
+
+    private void write(long sequence, Object event) {
+
+        int slot = (int) (sequence & mask);
+        sequences.set(slot, 0);
+        events.set(slot, event);
+        sequences.set(slot, sequence + 1);
+        tail.set(sequence + 1);
+    }
+
+    // Takes up to max events into out, oldest first, and returns how many were taken
+    int poll(Object[] out, int max) {
+
+        long h = head.get();
+        int count = 0;
+
+        while (count < max) {
+            long t = tail.get();
+            if (h >= t) {
+                break;
+            }
+
+            // Overwritten with DROP_OLDEST, the oldest events still in the ring are taken
+            if (t - h > capacity) {
+                dropped.addAndGet(t - capacity - h);
+                h = t - capacity;
+            }
+
+            int slot = (int) (h & mask);
+            long sequence = sequences.get(slot);
+            Object event = events.get(slot);
+
+            // The producer is writing over it or wrote over it while it was read, the tail will
+            // show how far it went
+            if (sequence != h + 1 || sequences.get(slot) != sequence) {
+                Thread.yield();
+                continue;
+            }
+
+            out[count++] = event;
+            h++;
+        }
+
+        head.set(h);
+        return count;
+    }
+
+    int size() {
+        return (int) Math.min(tail.get() - head.get(), capacity);
+    }
+}
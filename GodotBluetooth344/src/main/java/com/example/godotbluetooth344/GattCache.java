@@ -0,0 +1,33 @@
+package com.example.godotbluetooth344;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+// Keeps the GattLayout of every device on disk, key is the address
+class GattCache {
+
+    private static final String PREFERENCES = "GodotBluetooth344GattCache";
+
+    private final SharedPreferences preferences;
+
+    GattCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    // Returns null if the device is not cached
+    GattLayout load(String address) {
+        return GattLayout.parse(preferences.getString(address, null));
+    }
+
+    void save(String address, GattLayout layout) {
+        preferences.edit().putString(address, layout.serialize()).apply();
+    }
+
+    void remove(String address) {
+        preferences.edit().remove(address).apply();
+    }
+
+    void clear() {
+        preferences.edit().clear().apply();
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.godotbluetooth344;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Services and characteristics of a device, with the firmware revision it was read from.
+// It can be saved as text so it survives the application being closed
+class GattLayout {
+
+    private static final String VERSION = "1";
+
+    final List<String> serviceUuids = new ArrayList<String>(); // One per characteristic
+    final List<String> characteristicUuids = new ArrayList<String>();
+    final List<Integer> properties = new ArrayList<Integer>();
+    String firmware = null; // Null when the device has no firmware revision characteristic
+
+    void add(String serviceUuid, String characteristicUuid, int characteristicProperties) {
+        serviceUuids.add(serviceUuid.toLowerCase(Locale.ROOT));
+        characteristicUuids.add(characteristicUuid.toLowerCase(Locale.ROOT));
+        properties.add(characteristicProperties);
+    }
+
+    int size() {
+        return characteristicUuids.size();
+    }
+
+    boolean contains(String serviceUuid, String characteristicUuid) {
+
+        String service = serviceUuid.toLowerCase(Locale.ROOT);
+        String characteristic = characteristicUuid.toLowerCase(Locale.ROOT);
+
+        for (int i = 0; i < size(); i++) {
+            if (characteristicUuids.get(i).equals(characteristic) && serviceUuids.get(i).equals(service)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Compares the characteristics only, not the firmware
+    boolean sameCharacteristics(GattLayout other) {
+        return other != null && serviceUuids.equals(other.serviceUuids)
+                && characteristicUuids.equals(other.characteristicUuids) && properties.equals(other.properties);
+    }
+
+    // One line with the format version, one with the firmware and one per characteristic
+    String serialize() {
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(VERSION).append('\n');
+        builder.append(firmware != null ? firmware.replace('\n', ' ') : "").append('\n');
+
+        for (int i = 0; i < size(); i++) {
+            builder.append(serviceUuids.get(i)).append(' ')
+                    .append(characteristicUuids.get(i)).append(' ')
+                    .append(properties.get(i)).append('\n');
+        }
+        return builder.toString();
+    }
+
+    // Returns null if text was not made by serialize, or by another version of it
+    static GattLayout parse(String text) {
+
+        if (text == null) {
+            return null;
+        }
+
+        String[] lines = text.split("\n", -1);
+        if (lines.length < 2 || !lines[0].equals(VERSION)) {
+            return null;
+        }
+
+        GattLayout layout = new GattLayout();
+        layout.firmware = lines[1].isEmpty() ? null : lines[1];
+
+        for (int i = 2; i < lines.length; i++) {
+            if (lines[i].isEmpty()) {
+                continue;
+            }
+
+            String[] fields = lines[i].split(" ");
+            if (fields.length != 3) {
+                return null;
+            }
+
+            try {
+                layout.add(fields[0], fields[1], Integer.parseInt(fields[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return layout;
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.godotbluetooth344;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Arrays;
+
+// A single GATT request waiting in a GattOperationQueue
+class GattOperation {
+
+    static final int READ = 0;
+    static final int WRITE = 1;
+    static final int SUBSCRIBE = 2;
+    static final int UNSUBSCRIBE = 3;
+    static final int MTU = 4;
+    static final int DISCOVER_SERVICES = 5;
+    static final int STREAM = 6;
+
+    final int type;
+    final BluetoothGattCharacteristic characteristic; // Null for MTU and DISCOVER_SERVICES
+    byte[] value; // Replaced by newer values while a latest value write waits, see GattOperationQueue.enqueueLatest
+    final int size; // Requested MTU
+
+    int offset = 0; // Bytes of a STREAM already sent
+    private int chunkEnd = 0; // End of the STREAM chunk being written
+    int lastProgress = -1; // Last progress reported for a STREAM, in percent
+    long startTime = 0; // System.nanoTime() when the operation was sent
+    int pollHandle = -1; // Handle of the characteristic for reads sent by the poller
+    boolean internal = false; // Sent by the plugin for itself, not reported to GDScript nor counted
+    boolean latest = false; // A write that newer values of the characteristic replace while it waits
+    int superseded = 0; // Values replaced before the write was sent
+
+    private GattOperation(int type, BluetoothGattCharacteristic characteristic, byte[] value, int size) {
+        this.type = type;
+        this.characteristic = characteristic;
+        this.value = value;
+        this.size = size;
+    }
+
+    static GattOperation read(BluetoothGattCharacteristic characteristic) {
+        return new GattOperation(READ, characteristic, null, 0);
+    }
+
+    static GattOperation write(BluetoothGattCharacteristic characteristic, byte[] value) {
+        return new GattOperation(WRITE, characteristic, value, 0);
+    }
+
+    static GattOperation subscribe(BluetoothGattCharacteristic characteristic) {
+        return new GattOperation(SUBSCRIBE, characteristic, null, 0);
+    }
+
+    static GattOperation unsubscribe(BluetoothGattCharacteristic characteristic) {
+        return new GattOperation(UNSUBSCRIBE, characteristic, null, 0);
+    }
+
+    static GattOperation requestMtu(int mtu) {
+        return new GattOperation(MTU, null, null, mtu);
+    }
+
+    static GattOperation discoverServices() {
+        return new GattOperation(DISCOVER_SERVICES, null, null, 0);
+    }
+
+    // Writes value in chunks that fit the MTU, one after the other
+    static GattOperation stream(BluetoothGattCharacteristic characteristic, byte[] value) {
+        return new GattOperation(STREAM, characteristic, value, 0);
+    }
+
+    String getName() {
+        switch (type) {
+            case READ:
+                return "read";
+            case WRITE:
+                return "write";
+            case SUBSCRIBE:
+                return "subscribe";
+            case UNSUBSCRIBE:
+                return "unsubscribe";
+            case MTU:
+                return "mtu";
+            case DISCOVER_SERVICES:
+                return "discover_services";
+            default:
+                return "stream";
+        }
+    }
+
+    // Starts the operation, returns false if the stack refused it
+    boolean execute(GattTransport transport, int mtu) {
+
+        switch (type) {
+            case READ:
+                return transport.readCharacteristic(characteristic);
+
+            case WRITE:
+                // The value is passed here and not when queued, several writes to the same
+                // characteristic can be waiting at the same time
+                return transport.writeCharacteristic(characteristic, value, characteristic.getWriteType());
+
+            case MTU:
+                return transport.requestMtu(size);
+
+            case DISCOVER_SERVICES:
+                return transport.discoverServices();
+
+            case STREAM:
+                return writeChunk(transport, mtu);
+
+            default:
+                return transport.setNotification(characteristic, type == SUBSCRIBE);
+        }
+    }
+
+    // Called when a chunk of a STREAM has been written, returns true if there are more to send
+    boolean advance() {
+
+        if (type != STREAM) {
+            return false;
+        }
+
+        offset = chunkEnd;
+        return offset < value.length;
+    }
+
+    // Checks if a GATT callback belongs to this operation
+    boolean isCompletedBy(int callbackType, BluetoothGattCharacteristic c) {
+
+        if (c != characteristic) {
+            return false;
+        }
+
+        switch (type) {
+            case UNSUBSCRIBE:
+                return callbackType == SUBSCRIBE;
+            case STREAM:
+                return callbackType == WRITE;
+            default:
+                return callbackType == type;
+        }
+    }
+
+    private boolean writeChunk(GattTransport transport, int mtu) {
+
+        // 3 bytes of every ATT packet are used by the write header
+        chunkEnd = Math.min(value.length, offset + Math.max(1, mtu - 3));
+
+        // Chunks are sent without response when possible, the stack still reports every write so
+        // the next chunk is only sent when there is room for it
+        int writeType = characteristic.getWriteType();
+        if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+            writeType = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        }
+
+        return transport.writeCharacteristic(characteristic, Arrays.copyOfRange(value, offset, chunkEnd), writeType);
+    }
+}
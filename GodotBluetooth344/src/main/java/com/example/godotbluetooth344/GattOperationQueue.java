@@ -0,0 +1,221 @@
+package com.example.godotbluetooth344;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+// Android only allows one outstanding GATT operation per connection, this queue sends the
+// next one as soon as the previous one is reported by the BluetoothGattCallback. Operations can
+// be queued from any thread, they are always sent from the thread of handler
+class GattOperationQueue {
+
+    static final int STATUS_TIMEOUT = -1;
+    static final int STATUS_NOT_STARTED = -2;
+    static final int STATUS_CANCELLED = -3;
+
+    interface Listener {
+        void onOperationComplete(GattOperation operation, int status);
+
+        // Called after every chunk of a stream except the last one
+        void onOperationProgress(GattOperation operation);
+    }
+
+    private GattTransport transport = null;
+    private final Handler handler;
+    private final Executor sender; // Runs next() on the thread of handler
+    private final Listener listener;
+    private final long timeout;
+
+    private final ArrayDeque<GattOperation> pending = new ArrayDeque<GattOperation>();
+    private GattOperation current = null;
+    private int mtu = 23; // ATT MTU in use, 23 until a bigger one is negotiated
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            finishCurrent(STATUS_TIMEOUT);
+        }
+    };
+
+    private final Runnable nextRunnable = new Runnable() {
+        @Override
+        public void run() {
+            next();
+        }
+    };
+
+    GattOperationQueue(Handler handler, long timeout, Listener listener) {
+        this(handler, threadOf(handler), timeout, listener);
+    }
+
+    // Tests pass a sender that runs the operations on the caller
+    GattOperationQueue(Handler handler, Executor sender, long timeout, Listener listener) {
+        this.handler = handler;
+        this.sender = sender;
+        this.timeout = timeout;
+        this.listener = listener;
+    }
+
+    // Runs on the caller if it already is the thread of handler, posts to handler otherwise
+    private static Executor threadOf(final Handler handler) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                if (handler.getLooper() == Looper.myLooper()) {
+                    runnable.run();
+                } else {
+                    handler.post(runnable);
+                }
+            }
+        };
+    }
+
+    // Operations are held until the queue knows where to send them
+    void setTransport(GattTransport transport) {
+        synchronized (this) {
+            this.transport = transport;
+        }
+        next();
+    }
+
+    synchronized void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    synchronized int getMtu() {
+        return mtu;
+    }
+
+    void enqueue(GattOperation operation) {
+        synchronized (this) {
+            pending.add(operation);
+        }
+        sendNext();
+    }
+
+    // Queues a write that only keeps the newest value: if a latest value write to the same
+    // characteristic is still waiting, its value is replaced instead of queueing another write.
+    // Returns false if a waiting value was superseded
+    boolean enqueueLatest(GattOperation write) {
+
+        synchronized (this) {
+            for (GattOperation waiting : pending) {
+                if (waiting.latest && waiting.characteristic == write.characteristic) {
+                    waiting.value = write.value;
+                    waiting.superseded++;
+                    return false;
+                }
+            }
+
+            write.latest = true;
+            pending.add(write);
+        }
+        sendNext();
+        return true;
+    }
+
+    // Called from the BluetoothGattCallback, callbackType is GattOperation.READ, WRITE, SUBSCRIBE
+    // (for descriptor writes), MTU or DISCOVER_SERVICES
+    void onCallback(int callbackType, BluetoothGattCharacteristic characteristic, int status) {
+
+        GattOperation operation;
+        synchronized (this) {
+            if (current == null || !current.isCompletedBy(callbackType, characteristic)) {
+                return;
+            }
+            operation = current;
+
+            // A stream keeps the queue until its last chunk is written
+            if (status == BluetoothGatt.GATT_SUCCESS && operation.advance()) {
+                handler.removeCallbacks(timeoutRunnable);
+
+                if (operation.execute(transport, mtu)) {
+                    handler.postDelayed(timeoutRunnable, timeout);
+                } else {
+                    status = STATUS_NOT_STARTED;
+                    operation = null;
+                }
+            } else {
+                operation = null;
+            }
+        }
+
+        if (operation != null) {
+            listener.onOperationProgress(operation);
+        } else {
+            finishCurrent(status);
+        }
+    }
+
+    // Drops every queued operation, used when the connection is lost
+    void clear() {
+
+        ArrayDeque<GattOperation> cancelled;
+        synchronized (this) {
+            handler.removeCallbacks(timeoutRunnable);
+            cancelled = new ArrayDeque<GattOperation>(pending);
+            if (current != null) {
+                cancelled.addFirst(current);
+            }
+            pending.clear();
+            current = null;
+        }
+
+        for (GattOperation operation : cancelled) {
+            listener.onOperationComplete(operation, STATUS_CANCELLED);
+        }
+    }
+
+    synchronized int size() {
+        return pending.size() + (current != null ? 1 : 0);
+    }
+
+    private void finishCurrent(int status) {
+
+        GattOperation finished;
+        synchronized (this) {
+            handler.removeCallbacks(timeoutRunnable);
+            finished = current;
+            current = null;
+        }
+
+        if (finished != null) {
+            listener.onOperationComplete(finished, status);
+        }
+        next();
+    }
+
+    // Called from other threads, for example by methods called from GDScript, the operation is
+    // sent by the thread of handler
+    private void sendNext() {
+        sender.execute(nextRunnable);
+    }
+
+    private void next() {
+
+        while (true) {
+            GattOperation operation;
+            synchronized (this) {
+                if (transport == null || current != null || pending.isEmpty()) {
+                    return;
+                }
+                operation = pending.poll();
+                current = operation;
+                operation.startTime = System.nanoTime();
+
+                if (operation.execute(transport, mtu)) {
+                    handler.postDelayed(timeoutRunnable, timeout);
+                    return;
+                }
+                current = null;
+            }
+
+            // The stack refused it, report it and try the next one
+            listener.onOperationComplete(operation, STATUS_NOT_STARTED);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.godotbluetooth344;
+
+// Fixed size ring buffer of GATT events. Recording only stores numbers in preallocated arrays,
+// so it can stay enabled in production and be read when something goes wrong
+class GattTrace {
+
+    static final int CONNECTED = 0;
+    static final int DISCONNECTED = 1;
+    static final int SERVICES_DISCOVERED = 2;
+    static final int READ = 3;
+    static final int WRITE = 4;
+    static final int DESCRIPTOR_WRITE = 5;
+    static final int NOTIFICATION = 6;
+    static final int MTU = 7;
+    static final int PHY = 8;
+    static final int CONNECTION_UPDATED = 9;
+
+    private static final String[] NAMES = {"connected", "disconnected", "services_discovered", "read",
+            "write", "descriptor_write", "notification", "mtu", "phy", "connection_updated"};
+
+    static class Snapshot {
+        long[] times;
+        int[] events;
+        long[] addresses;
+        int[] handles;
+        int[] statuses;
+        int[] lengths;
+        int count;
+    }
+
+    private final long[] times;
+    private final int[] events;
+    private final long[] addresses;
+    private final int[] handles;
+    private final int[] statuses;
+    private final int[] lengths;
+
+    private int next = 0; // Where the next event goes
+    private int count = 0;
+
+    GattTrace(int capacity) {
+        times = new long[capacity];
+        events = new int[capacity];
+        addresses = new long[capacity];
+        handles = new int[capacity];
+        statuses = new int[capacity];
+        lengths = new int[capacity];
+    }
+
+    static String eventName(int event) {
+        return NAMES[event];
+    }
+
+    // address is the packed address of DeviceRegistry.addressToLong, handle -1 when the event
+    // has no characteristic
+    synchronized void record(long timeNanos, int event, long address, int handle, int status, int length) {
+
+        times[next] = timeNanos;
+        events[next] = event;
+        addresses[next] = address;
+        handles[next] = handle;
+        statuses[next] = status;
+        lengths[next] = length;
+
+        next = (next + 1) % times.length;
+        if (count < times.length) {
+            count++;
+        }
+    }
+
+    // Returns the recorded events, oldest first
+    synchronized Snapshot snapshot() {
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.count = count;
+        snapshot.times = new long[count];
+        snapshot.events = new int[count];
+        snapshot.addresses = new long[count];
+        snapshot.handles = new int[count];
+        snapshot.statuses = new int[count];
+        snapshot.lengths = new int[count];
+
+        int first = (next - count + times.length) % times.length;
+        for (int i = 0; i < count; i++) {
+            int index = (first + i) % times.length;
+
+            snapshot.times[i] = times[index];
+            snapshot.events[i] = events[index];
+            snapshot.addresses[i] = addresses[index];
+            snapshot.handles[i] = handles[index];
+            snapshot.statuses[i] = statuses[index];
+            snapshot.lengths[i] = lengths[index];
+        }
+        return snapshot;
+    }
+
+    synchronized void clear() {
+        next = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.godotbluetooth344;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+// The GATT requests a GattOperationQueue sends. On a device they go to a BluetoothGatt, the
+// results come back through the BluetoothGattCallback and GattOperationQueue.onCallback.
+// Every method returns false if the request could not be started
+interface GattTransport {
+
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    // writeType is one of the BluetoothGattCharacteristic.WRITE_TYPE_ values
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType);
+
+    // Enables or disables notifications, on the stack and on the device
+    boolean setNotification(BluetoothGattCharacteristic characteristic, boolean enable);
+
+    boolean requestMtu(int mtu);
+
+    boolean discoverServices();
+}
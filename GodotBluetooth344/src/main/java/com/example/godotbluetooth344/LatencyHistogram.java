@@ -0,0 +1,59 @@
+package com.example.godotbluetooth344;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Histogram with fixed buckets, recording is lock free so it can be used from any callback
+class LatencyHistogram {
+
+    // Upper bound of every bucket in milliseconds, there is one more bucket for slower values
+    static final int[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record(long nanos) {
+
+        long micros = nanos / 1000;
+
+        int bucket = 0;
+        while (bucket < BOUNDS.length && micros > BOUNDS[bucket] * 1000L) {
+            bucket++;
+        }
+
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    // In milliseconds
+    double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : totalMicros.get() / 1000.0 / n;
+    }
+
+    // In milliseconds
+    double getMax() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    int[] getBuckets() {
+
+        int[] values = new int[buckets.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (int) buckets.get(i);
+        }
+        return values;
+    }
+}
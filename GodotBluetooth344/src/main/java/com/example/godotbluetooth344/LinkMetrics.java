@@ -0,0 +1,20 @@
+package com.example.godotbluetooth344;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counters and latencies of the link with one device, they are kept across reconnections
+class LinkMetrics {
+
+    final AtomicLong notifications = new AtomicLong();
+    final AtomicLong notificationBytes = new AtomicLong();
+    final AtomicLong reads = new AtomicLong();
+    final AtomicLong writes = new AtomicLong();
+    final AtomicLong failedOperations = new AtomicLong();
+    final AtomicLong supersededWrites = new AtomicLong(); // Replaced by a newer value before being sent
+    final AtomicLong connections = new AtomicLong();
+
+    final LatencyHistogram readLatency = new LatencyHistogram();
+    final LatencyHistogram writeLatency = new LatencyHistogram();
+    final LatencyHistogram connectLatency = new LatencyHistogram();
+    final LatencyHistogram discoveryLatency = new LatencyHistogram();
+}
@@ -0,0 +1,269 @@
+package com.example.godotbluetooth344;
+
+import java.util.Arrays;
+import java.util.Map;
+
+// Rebuilds the application messages a device sends split in several notifications. The message
+// is assembled in a buffer reused for every message, the listener must copy what it keeps
+class MessageFramer {
+
+    // Every message starts with its length, lengthSize bytes in little endian. Messages can be
+    // split anywhere, and a notification can carry the end of a message and the start of another
+    static final int LENGTH_PREFIXED = 0;
+
+    // Every message ends with the delimiter, which is not part of the message
+    static final int DELIMITED = 1;
+
+    // Every notification starts with a header byte: the highest bit is set on the last fragment of
+    // a message, the other 7 bits are a sequence number that grows by one with every notification
+    static final int SEQUENCED = 2;
+
+    static final int ERROR_TOO_LONG = 0; // The message is longer than maxLength
+    static final int ERROR_MISSING_FRAGMENT = 1; // A fragment was dropped or came out of order
+
+    interface Listener {
+        void onMessage(byte[] buffer, int length);
+
+        // The message being assembled is dropped
+        void onError(int error);
+    }
+
+    private final int format;
+    private final int lengthSize;
+    private final byte[] delimiter;
+    private final int maxLength;
+    private final Listener listener;
+
+    private byte[] buffer = new byte[256];
+    private int used = 0;
+    private int expectedLength = -1; // LENGTH_PREFIXED, -1 while the length is not complete
+    private long skipping = 0; // LENGTH_PREFIXED, bytes of a message too long still to drop
+    private int nextSequence = -1; // SEQUENCED, -1 when any sequence number is valid
+    private boolean discarding = false; // After an error, bytes are dropped until the next message
+
+    MessageFramer(int format, int lengthSize, byte[] delimiter, int maxLength, Listener listener) {
+        this.format = format;
+        this.lengthSize = lengthSize;
+        this.delimiter = delimiter;
+        this.maxLength = maxLength;
+        this.listener = listener;
+    }
+
+    // The accepted keys are format ("length", "delimiter" or "sequence"), length_size (1, 2 or 4,
+    // defaults to 2), delimiter (defaults to a new line) and max_length (defaults to 65536).
+    // Throws IllegalArgumentException if a value is not valid
+    static MessageFramer fromDictionary(Map<String, Object> dictionary, Listener listener) {
+
+        String name = (String) dictionary.get("format");
+        int format;
+        if ("length".equals(name)) {
+            format = LENGTH_PREFIXED;
+        } else if ("delimiter".equals(name)) {
+            format = DELIMITED;
+        } else if ("sequence".equals(name)) {
+            format = SEQUENCED;
+        } else {
+            throw new IllegalArgumentException("Unknown format " + name);
+        }
+
+        int lengthSize = dictionary.containsKey("length_size") ? ((Number) dictionary.get("length_size")).intValue() : 2;
+        if (lengthSize != 1 && lengthSize != 2 && lengthSize != 4) {
+            throw new IllegalArgumentException("length_size must be 1, 2 or 4");
+        }
+
+        byte[] delimiter = dictionary.containsKey("delimiter") ? (byte[]) dictionary.get("delimiter") : new byte[]{'\n'};
+        if (delimiter == null || delimiter.length == 0) {
+            throw new IllegalArgumentException("delimiter cannot be empty");
+        }
+
+        int maxLength = dictionary.containsKey("max_length") ? ((Number) dictionary.get("max_length")).intValue() : 65536;
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("max_length must be positive");
+        }
+
+        return new MessageFramer(format, lengthSize, delimiter, maxLength, listener);
+    }
+
+    synchronized void add(byte[] value) {
+
+        if (value == null) {
+            return;
+        }
+
+        switch (format) {
+            case LENGTH_PREFIXED:
+                addLengthPrefixed(value);
+                break;
+            case DELIMITED:
+                addDelimited(value);
+                break;
+            default:
+                addSequenced(value);
+                break;
+        }
+    }
+
+    // Drops the message being assembled, used when the device disconnects
+    synchronized void reset() {
+
+        used = 0;
+        expectedLength = -1;
+        skipping = 0;
+        nextSequence = -1;
+        discarding = false;
+    }
+
+    private void addLengthPrefixed(byte[] value) {
+
+        int position = 0;
+        while (position < value.length) {
+
+            if (skipping > 0) {
+                int count = (int) Math.min(skipping, value.length - position);
+                skipping -= count;
+                position += count;
+                continue;
+            }
+
+            if (expectedLength < 0) {
+                int needed = lengthSize - used;
+                int count = Math.min(needed, value.length - position);
+                append(value, position, count);
+                position += count;
+
+                if (used < lengthSize) {
+                    return;
+                }
+
+                long length = 0;
+                for (int i = lengthSize - 1; i >= 0; i--) {
+                    length = (length << 8) | (buffer[i] & 0xFF);
+                }
+                used = 0;
+
+                // The body is dropped, even across notifications, and the next length follows it
+                if (length > maxLength) {
+                    listener.onError(ERROR_TOO_LONG);
+                    skipping = length;
+                    continue;
+                }
+                expectedLength = (int) length;
+            }
+
+            int count = Math.min(expectedLength - used, value.length - position);
+            append(value, position, count);
+            position += count;
+
+            if (used == expectedLength) {
+                listener.onMessage(buffer, used);
+                used = 0;
+                expectedLength = -1;
+            }
+        }
+    }
+
+    private void addDelimited(byte[] value) {
+
+        for (byte b : value) {
+
+            if (!discarding) {
+                if (used == maxLength + delimiter.length) {
+                    listener.onError(ERROR_TOO_LONG);
+                    // b may complete a delimiter that started in the bytes kept
+                    int keep = delimiter.length - 1;
+                    System.arraycopy(buffer, used - keep, buffer, 0, keep);
+                    used = keep;
+                    discarding = true;
+                } else {
+                    append(b);
+                }
+            }
+
+            if (endsWithDelimiter(b)) {
+                if (!discarding) {
+                    listener.onMessage(buffer, used - delimiter.length);
+                }
+                used = 0;
+                discarding = false;
+            }
+        }
+    }
+
+    // While discarding the buffer only keeps the last bytes, enough to find the delimiter
+    private boolean endsWithDelimiter(byte b) {
+
+        if (discarding) {
+            if (used == delimiter.length) {
+                System.arraycopy(buffer, 1, buffer, 0, used - 1);
+                used--;
+            }
+            append(b);
+        }
+
+        if (used < delimiter.length) {
+            return false;
+        }
+        for (int i = 0; i < delimiter.length; i++) {
+            if (buffer[used - delimiter.length + i] != delimiter[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addSequenced(byte[] value) {
+
+        if (value.length == 0) {
+            return;
+        }
+
+        int header = value[0] & 0xFF;
+        int sequence = header & 0x7F;
+        boolean last = (header & 0x80) != 0;
+
+        // The fragments of the message being assembled are useless if one is missing
+        if (nextSequence >= 0 && sequence != nextSequence) {
+            if (used > 0 || !discarding) {
+                listener.onError(ERROR_MISSING_FRAGMENT);
+            }
+            used = 0;
+            discarding = true;
+        }
+        nextSequence = (sequence + 1) & 0x7F;
+
+        if (!discarding) {
+            if (used + value.length - 1 > maxLength) {
+                listener.onError(ERROR_TOO_LONG);
+                used = 0;
+                discarding = true;
+            } else {
+                append(value, 1, value.length - 1);
+            }
+        }
+
+        if (last) {
+            if (!discarding) {
+                listener.onMessage(buffer, used);
+            }
+            used = 0;
+            discarding = false;
+        }
+    }
+
+    private void append(byte[] value, int offset, int count) {
+
+        if (used + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, used + count));
+        }
+        System.arraycopy(value, offset, buffer, used, count);
+        used += count;
+    }
+
+    private void append(byte b) {
+
+        if (used == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[used++] = b;
+    }
+}
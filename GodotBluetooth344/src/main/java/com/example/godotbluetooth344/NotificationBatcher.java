@@ -0,0 +1,97 @@
+package com.example.godotbluetooth344;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Collects notifications so they can be sent to Godot as a single signal, the internal buffers
+// are reused between flushes so the cost per notification is a copy of its payload
+class NotificationBatcher {
+
+    static class Batch {
+        Object[] sources; // Distinct sources (characteristics) found in this batch
+        int[] sourceIndex; // For every sample, the index of its source
+        byte[] bytes; // All the payloads, one after the other
+        int[] lengths; // Length of every payload
+        long startTime; // Timestamp of the first sample in nanoseconds
+        int[] timestamps; // Microseconds since startTime of every sample
+        int count;
+    }
+
+    private final int maxSamples;
+
+    private byte[] buffer = new byte[1024];
+    private int used = 0;
+    private int[] lengths = new int[64];
+    private int[] sourceIndex = new int[64];
+    private long[] times = new long[64];
+    private final List<Object> sources = new ArrayList<Object>();
+    private int count = 0;
+
+    // maxSamples <= 0 means no size limit
+    NotificationBatcher(int maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    // Returns true when the batch is full and should be flushed
+    synchronized boolean add(Object source, byte[] value, long timeNanos) {
+
+        int length = value != null ? value.length : 0;
+
+        if (used + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, used + length));
+        }
+        if (count == lengths.length) {
+            lengths = Arrays.copyOf(lengths, count * 2);
+            sourceIndex = Arrays.copyOf(sourceIndex, count * 2);
+            times = Arrays.copyOf(times, count * 2);
+        }
+
+        int index = sources.indexOf(source);
+        if (index < 0) {
+            index = sources.size();
+            sources.add(source);
+        }
+
+        if (length > 0) {
+            System.arraycopy(value, 0, buffer, used, length);
+        }
+        used += length;
+        lengths[count] = length;
+        sourceIndex[count] = index;
+        times[count] = timeNanos;
+        count++;
+
+        return maxSamples > 0 && count >= maxSamples;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    // Returns the pending samples and empties the batcher, or null if there is nothing to send
+    synchronized Batch flush() {
+
+        if (count == 0) {
+            return null;
+        }
+
+        Batch batch = new Batch();
+        batch.count = count;
+        batch.sources = sources.toArray();
+        batch.sourceIndex = Arrays.copyOf(sourceIndex, count);
+        batch.bytes = Arrays.copyOf(buffer, used);
+        batch.lengths = Arrays.copyOf(lengths, count);
+        batch.startTime = times[0];
+        batch.timestamps = new int[count];
+        for (int i = 0; i < count; i++) {
+            batch.timestamps[i] = (int) ((times[i] - times[0]) / 1000);
+        }
+
+        used = 0;
+        count = 0;
+        sources.clear();
+
+        return batch;
+    }
+}
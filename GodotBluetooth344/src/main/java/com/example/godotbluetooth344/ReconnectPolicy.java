@@ -0,0 +1,48 @@
+package com.example.godotbluetooth344;
+
+// Decides when to connect again after a connection fails or a link is lost. The delay doubles
+// with every attempt, up to MAX_DELAY
+class ReconnectPolicy {
+
+    // GATT_ERROR, what Android reports for most failed connections. It is often transient, the
+    // same connection usually works when tried again
+    static final int GATT_ERROR = 133;
+
+    static final long MAX_DELAY = 30000;
+
+    volatile int maxAttempts = 0; // Attempts after losing a link, 0 disables them, -1 means no limit
+    volatile long initialDelay = 500; // In milliseconds
+    volatile int gattErrorRetries = 2; // Attempts after a new connection fails with GATT_ERROR
+
+    // attempt is 1 for the first attempt after the failure, reconnecting is true if the device was
+    // connected before. Returns the milliseconds to wait before the attempt, or -1 to give up
+    long delay(int attempt, int status, boolean reconnecting) {
+
+        int limit;
+        if (reconnecting) {
+            limit = maxAttempts;
+        } else {
+            limit = status == GATT_ERROR ? gattErrorRetries : 0;
+        }
+
+        if (attempt < 1 || (limit >= 0 && attempt > limit)) {
+            return -1;
+        }
+        return backoff(attempt);
+    }
+
+    // Background connections are never given up. A lost link is opened again at once, the system
+    // already waits for the device, but a link that cannot be opened waits like the others
+    long backgroundDelay(int attempt, boolean wasConnected) {
+        return wasConnected ? 0 : backoff(attempt);
+    }
+
+    private long backoff(int attempt) {
+
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < MAX_DELAY; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, MAX_DELAY);
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.godotbluetooth344;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps the latest scan result of every device so repeated advertisements can be sent
+// together, and no more often than minInterval milliseconds per device
+class ScanCoalescer<T> {
+
+    private static class Entry<T> {
+        T latest;
+        boolean changed;
+        long lastSent = Long.MIN_VALUE;
+    }
+
+    private final long minInterval;
+    private final Map<String, Entry<T>> entries = new HashMap<String, Entry<T>>();
+
+    ScanCoalescer(long minInterval) {
+        this.minInterval = minInterval;
+    }
+
+    synchronized void offer(String address, T result) {
+
+        Entry<T> entry = entries.get(address);
+        if (entry == null) {
+            entry = new Entry<T>();
+            entries.put(address, entry);
+        }
+        entry.latest = result;
+        entry.changed = true;
+    }
+
+    // Returns the devices that changed and are allowed to be sent again at time now
+    synchronized Map<String, T> collect(long now) {
+
+        Map<String, T> changed = new LinkedHashMap<String, T>();
+
+        for (Map.Entry<String, Entry<T>> e : entries.entrySet()) {
+            Entry<T> entry = e.getValue();
+
+            if (entry.changed && (entry.lastSent == Long.MIN_VALUE || now - entry.lastSent >= minInterval)) {
+                changed.put(e.getKey(), entry.latest);
+                entry.changed = false;
+                entry.lastSent = now;
+            }
+        }
+        return changed;
+    }
+
+    synchronized void remove(String address) {
+        entries.remove(address);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+}
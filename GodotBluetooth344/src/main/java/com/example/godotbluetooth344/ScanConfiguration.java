@@ -0,0 +1,98 @@
+package com.example.godotbluetooth344;
+
+import static android.bluetooth.le.ScanSettings.SCAN_MODE_LOW_LATENCY;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Filters and settings used when starting a scan. Filters are matched by the Bluetooth
+// controller when it supports it, so advertisements that do not match never wake the app
+class ScanConfiguration {
+
+    private final List<ScanFilter> filters = new ArrayList<ScanFilter>();
+
+    volatile int scanMode = SCAN_MODE_LOW_LATENCY;
+    volatile long reportDelay = 0;
+    volatile int matchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+    volatile int numOfMatches = ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT;
+
+    // Builds a filter from a Godot dictionary, the accepted keys are service_uuid, manufacturer_id,
+    // manufacturer_data, manufacturer_data_mask, name and address. Throws IllegalArgumentException
+    // if a value is not valid
+    static ScanFilter filterFromDictionary(Map<String, Object> dictionary) {
+
+        ScanFilter.Builder builder = new ScanFilter.Builder();
+
+        if (dictionary.containsKey("service_uuid")) {
+            builder.setServiceUuid(ParcelUuid.fromString((String) dictionary.get("service_uuid")));
+        }
+
+        if (dictionary.containsKey("manufacturer_id")) {
+            int manufacturerId = ((Number) dictionary.get("manufacturer_id")).intValue();
+            byte[] data = (byte[]) dictionary.get("manufacturer_data");
+            byte[] mask = (byte[]) dictionary.get("manufacturer_data_mask");
+
+            if (data == null) {
+                data = new byte[0];
+            }
+
+            if (mask != null) {
+                builder.setManufacturerData(manufacturerId, data, mask);
+            } else {
+                builder.setManufacturerData(manufacturerId, data);
+            }
+        }
+
+        if (dictionary.containsKey("name")) {
+            builder.setDeviceName((String) dictionary.get("name"));
+        }
+
+        if (dictionary.containsKey("address")) {
+            builder.setDeviceAddress((String) dictionary.get("address"));
+        }
+
+        return builder.build();
+    }
+
+    synchronized void addFilter(ScanFilter filter) {
+        filters.add(filter);
+    }
+
+    synchronized void clearFilters() {
+        filters.clear();
+    }
+
+    synchronized boolean hasFilters() {
+        return !filters.isEmpty();
+    }
+
+    // Returns null when there are no filters, as startScan expects
+    synchronized List<ScanFilter> getFilters() {
+        return filters.isEmpty() ? null : new ArrayList<ScanFilter>(filters);
+    }
+
+    ScanSettings buildSettings(BluetoothAdapter adapter) {
+
+        ScanSettings.Builder settingBuilder = new ScanSettings.Builder();
+        settingBuilder.setScanMode(scanMode);
+
+        // Batching needs support from the controller, without it results are reported at once
+        if (reportDelay > 0 && adapter.isOffloadedScanBatchingSupported()) {
+            settingBuilder.setReportDelay(reportDelay);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            settingBuilder.setMatchMode(matchMode);
+            settingBuilder.setNumOfMatches(numOfMatches);
+        }
+
+        return settingBuilder.build();
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.godotbluetooth344;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides what happens to every advertisement: devices seen for the first time are reported at
+// once, the ones already found are coalesced, reported again or dropped
+class ScanProcessor {
+
+    interface Listener {
+        void onDeviceFound(Advertisement advertisement);
+    }
+
+    private final DeviceRegistry devices;
+    private final Listener listener;
+
+    final AtomicLong received = new AtomicLong(); // Advertisements processed, dropped ones included
+    final AtomicLong found = new AtomicLong(); // Devices reported for the first time
+
+    // Set from GDScript while results are processed
+    volatile boolean namedOnly = true; // Devices without name are dropped, unless filters already chose them
+    volatile boolean reportDuplicates = true;
+
+    // When set, devices already found are reported again only if their advertisement changed, or
+    // their RSSI moved rssiDelta or more (0 ignores the RSSI). reportDuplicates is not used then
+    volatile boolean changesOnly = false;
+    volatile int rssiDelta = 0;
+    volatile ScanCoalescer<Advertisement> coalescer = null; // Null when duplicates are sent as they arrive
+
+    // When there are filters only devices matching one of them are reported, named or not
+    final List<AdvertisementFilter> filters = new CopyOnWriteArrayList<AdvertisementFilter>();
+
+    ScanProcessor(DeviceRegistry devices, Listener listener) {
+        this.devices = devices;
+        this.listener = listener;
+    }
+
+    // now is in milliseconds, used to know when a device was last seen
+    void process(Advertisement advertisement, long now) {
+
+        received.incrementAndGet();
+
+        if (!filters.isEmpty()) {
+            if (!matchesAnyFilter(advertisement)) {
+                return;
+            }
+        } else if (advertisement.name == null && namedOnly) {
+            return;
+        }
+
+        boolean isNew = devices.update(advertisement.address, advertisement.name, advertisement.rssi, now);
+
+        // The first advertisement of a device is the reference for the next ones
+        boolean changed = changesOnly && devices.reportIfChanged(advertisement.address,
+                Arrays.hashCode(advertisement.scanRecord), advertisement.rssi, rssiDelta);
+
+        if (isNew) {
+            found.incrementAndGet();
+            listener.onDeviceFound(advertisement);
+            return;
+        }
+
+        if (changesOnly && !changed) {
+            return;
+        }
+
+        ScanCoalescer<Advertisement> c = coalescer;
+        if (c != null) {
+            c.offer(advertisement.address, advertisement);
+        } else if (reportDuplicates || changesOnly) {
+            listener.onDeviceFound(advertisement);
+        }
+    }
+
+    private boolean matchesAnyFilter(Advertisement advertisement) {
+
+        for (AdvertisementFilter filter : filters) {
+            if (filter.matches(advertisement)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
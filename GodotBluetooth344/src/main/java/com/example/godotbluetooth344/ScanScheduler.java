@@ -0,0 +1,83 @@
+package com.example.godotbluetooth344;
+
+import static android.bluetooth.le.ScanSettings.SCAN_MODE_BALANCED;
+import static android.bluetooth.le.ScanSettings.SCAN_MODE_LOW_LATENCY;
+import static android.bluetooth.le.ScanSettings.SCAN_MODE_LOW_POWER;
+
+// Plans a scan as windows of scanning separated by pauses, and chooses the scan mode of every
+// window from the devices found in the previous ones. It also keeps the scan starts under the
+// limit of Android, which silently ignores a sixth start within 30 seconds
+class ScanScheduler {
+
+    static final int MAX_STARTS = 5;
+    static final long START_PERIOD = 30000 + 500; // With a margin, the system clock is not ours
+
+    // Android turns scans longer than 30 minutes into opportunistic ones, they are restarted before
+    static final long MAX_SCAN_DURATION = 25 * 60 * 1000;
+
+    // Windows without new devices before lowering the scan mode, while the app is in foreground
+    static final int QUIET_WINDOWS_BALANCED = 1;
+    static final int QUIET_WINDOWS_LOW_POWER = 6;
+
+    volatile long window = 10000; // Milliseconds scanning
+    volatile long pause = 0; // Milliseconds between windows, 0 scans without stopping
+    volatile boolean foreground = true;
+
+    private final long[] starts = new long[MAX_STARTS]; // Last starts, oldest at next
+    private int next = 0;
+    private int count = 0;
+    private int quietWindows = 0;
+
+    // Returns the milliseconds to wait before starting a scan at now, 0 if it can start at once
+    synchronized long startDelay(long now) {
+
+        if (count < MAX_STARTS) {
+            return 0;
+        }
+        return Math.max(0, starts[next] + START_PERIOD - now);
+    }
+
+    synchronized void onStarted(long now) {
+
+        starts[next] = now;
+        next = (next + 1) % MAX_STARTS;
+        count = Math.min(count + 1, MAX_STARTS);
+    }
+
+    // If the last scan started has been running for too long at now
+    synchronized boolean needsRestart(long now) {
+        return count > 0 && now - starts[(next + MAX_STARTS - 1) % MAX_STARTS] >= MAX_SCAN_DURATION;
+    }
+
+    // Mode of the first window of a scan
+    synchronized int firstMode() {
+
+        quietWindows = 0;
+        return foreground ? SCAN_MODE_LOW_LATENCY : SCAN_MODE_LOW_POWER;
+    }
+
+    // Called at the end of every window with the number of devices found for the first time
+    // during it, returns the mode of the next window
+    synchronized int nextMode(long newDevices) {
+
+        if (newDevices > 0) {
+            quietWindows = 0;
+        } else {
+            quietWindows++;
+        }
+        return mode();
+    }
+
+    // Mode for the windows seen so far, used when the app goes to or comes from background in
+    // the middle of a window
+    synchronized int mode() {
+
+        if (!foreground || quietWindows >= QUIET_WINDOWS_LOW_POWER) {
+            return SCAN_MODE_LOW_POWER;
+        }
+        if (quietWindows >= QUIET_WINDOWS_BALANCED) {
+            return SCAN_MODE_BALANCED;
+        }
+        return SCAN_MODE_LOW_LATENCY;
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.godotbluetooth344;
+
+// Where advertisements come from, a BluetoothLeScanner on a device
+interface ScanTransport {
+
+    // Reported by onScanFailed when the scan cannot start because Bluetooth is off
+    int SCAN_FAILED_BLUETOOTH_OFF = -1;
+
+    interface Listener {
+        void onAdvertisement(Advertisement advertisement);
+
+        void onScanFailed(int errorCode);
+    }
+
+    void start(ScanConfiguration configuration, Listener listener);
+
+    // Stops the scan started by start, nothing of it is reported afterwards except the results
+    // still held by the controller, which can arrive after stop returns
+    void stop();
+}
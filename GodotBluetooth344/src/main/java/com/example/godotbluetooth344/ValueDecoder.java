@@ -0,0 +1,322 @@
+package com.example.godotbluetooth344;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Turns the bytes of a characteristic into named numbers. The schema is read once into arrays,
+// decoding is a loop over them. Fields are read one after the other, bit fields from the lowest
+// bit, and the other types start at the next whole byte
+class ValueDecoder {
+
+    private static final int U8 = 0;
+    private static final int S8 = 1;
+    private static final int U16 = 2;
+    private static final int S16 = 3;
+    private static final int U24 = 4;
+    private static final int S24 = 5;
+    private static final int U32 = 6;
+    private static final int S32 = 7;
+    private static final int F32 = 8;
+    private static final int F64 = 9;
+    private static final int SFLOAT = 10; // IEEE 11073 16 bit float, used by the SIG formats
+    private static final int FLOAT = 11; // IEEE 11073 32 bit float
+    private static final int BITS = 12;
+
+    private static final String[] TYPE_NAMES = {"u8", "s8", "u16", "s16", "u24", "s24", "u32", "s32",
+            "f32", "f64", "sfloat", "float", "bits"};
+    private static final int[] TYPE_SIZES = {8, 8, 16, 16, 24, 24, 32, 32, 32, 64, 16, 32, 0}; // In bits
+
+    // Formats that a list of fields cannot describe
+    private static final int SCHEMA = 0;
+    private static final int HEART_RATE_MEASUREMENT = 1;
+
+    private final int format;
+    private final String[] names;
+    private final int[] types;
+    private final int[] sizes; // In bits
+    private final boolean[] bigEndian;
+    private final double[] scales;
+    private final double[] offsets;
+    private final int[] counts; // 0 repeats the field until the end of the value
+
+    private ValueDecoder(int format, int fields) {
+        this.format = format;
+        this.names = new String[fields];
+        this.types = new int[fields];
+        this.sizes = new int[fields];
+        this.bigEndian = new boolean[fields];
+        this.scales = new double[fields];
+        this.offsets = new double[fields];
+        this.counts = new int[fields];
+    }
+
+    // Either {"format": "heart_rate"} or {"fields": [...]}, where every field is a dictionary with
+    // name, type (u8, s8, u16, s16, u24, s24, u32, s32, f32, f64, sfloat, float or bits), and
+    // optionally bits (size of a bits field), big_endian (defaults to false), scale and offset
+    // (value * scale + offset) and count (defaults to 1, 0 repeats until the end). Throws
+    // IllegalArgumentException if the schema is not valid
+    static ValueDecoder fromDictionary(Map<String, Object> dictionary) {
+
+        if (dictionary.containsKey("format")) {
+            if (!"heart_rate".equals(dictionary.get("format"))) {
+                throw new IllegalArgumentException("Unknown format " + dictionary.get("format"));
+            }
+            return new ValueDecoder(HEART_RATE_MEASUREMENT, 0);
+        }
+
+        Object[] fields = toArray(dictionary.get("fields"));
+        if (fields == null || fields.length == 0) {
+            throw new IllegalArgumentException("fields is missing");
+        }
+
+        ValueDecoder decoder = new ValueDecoder(SCHEMA, fields.length);
+        for (int i = 0; i < fields.length; i++) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> field = (Map<String, Object>) fields[i];
+
+            decoder.names[i] = (String) field.get("name");
+            if (decoder.names[i] == null) {
+                throw new IllegalArgumentException("Field " + i + " has no name");
+            }
+
+            int type = Arrays.asList(TYPE_NAMES).indexOf(field.get("type"));
+            if (type < 0) {
+                throw new IllegalArgumentException("Unknown type " + field.get("type"));
+            }
+            decoder.types[i] = type;
+            decoder.sizes[i] = type == BITS ? intValue(field, "bits", 0) : TYPE_SIZES[type];
+            if (type == BITS && (decoder.sizes[i] < 1 || decoder.sizes[i] > 32)) {
+                throw new IllegalArgumentException("bits must be between 1 and 32");
+            }
+
+            decoder.bigEndian[i] = Boolean.TRUE.equals(field.get("big_endian"));
+            decoder.scales[i] = field.containsKey("scale") ? ((Number) field.get("scale")).doubleValue() : 1;
+            decoder.offsets[i] = field.containsKey("offset") ? ((Number) field.get("offset")).doubleValue() : 0;
+            decoder.counts[i] = intValue(field, "count", 1);
+            if (decoder.counts[i] < 0) {
+                throw new IllegalArgumentException("count cannot be negative");
+            }
+        }
+        return decoder;
+    }
+
+    // Godot arrays arrive as Object[]
+    private static Object[] toArray(Object value) {
+
+        if (value instanceof Object[]) {
+            return (Object[]) value;
+        }
+        if (value instanceof List) {
+            return ((List<?>) value).toArray();
+        }
+        return null;
+    }
+
+    private static int intValue(Map<String, Object> field, String key, int defaultValue) {
+        return field.containsKey(key) ? ((Number) field.get(key)).intValue() : defaultValue;
+    }
+
+    // Puts the fields found in the first length bytes of value into out. Fields that do not fit are
+    // left out. Fields with a count other than 1 are arrays, int[] when the values are integers
+    // and double[] otherwise
+    void decode(byte[] value, int length, Map<String, Object> out) {
+
+        if (format == HEART_RATE_MEASUREMENT) {
+            decodeHeartRateMeasurement(value, length, out);
+            return;
+        }
+
+        long position = 0; // In bits
+        long end = (long) length * 8;
+
+        for (int i = 0; i < names.length; i++) {
+            int size = sizes[i];
+            if (types[i] != BITS) {
+                position = (position + 7) & ~7L;
+            }
+
+            int count = counts[i];
+            boolean array = count != 1;
+            if (count == 0) {
+                count = (int) ((end - position) / size);
+            }
+            if (position + (long) count * size > end) {
+                return;
+            }
+
+            boolean integers = isInteger(i);
+            if (!array) {
+                if (integers) {
+                    out.put(names[i], (int) readRaw(value, position, i));
+                } else {
+                    out.put(names[i], readNumber(value, position, i));
+                }
+            } else if (integers) {
+                int[] values = new int[count];
+                for (int j = 0; j < count; j++) {
+                    values[j] = (int) readRaw(value, position + (long) j * size, i);
+                }
+                out.put(names[i], values);
+            } else {
+                double[] values = new double[count];
+                for (int j = 0; j < count; j++) {
+                    values[j] = readNumber(value, position + (long) j * size, i);
+                }
+                out.put(names[i], values);
+            }
+
+            position += (long) count * size;
+        }
+    }
+
+    // Integers that are not scaled fit an int, except u32 and bit fields of 32 bits
+    private boolean isInteger(int field) {
+
+        int type = types[field];
+        return scales[field] == 1 && offsets[field] == 0 && type != F32 && type != F64
+                && type != SFLOAT && type != FLOAT && type != U32 && sizes[field] < 32;
+    }
+
+    private double readNumber(byte[] value, long position, int field) {
+
+        long raw = readRaw(value, position, field);
+        double number;
+
+        switch (types[field]) {
+            case F32:
+                number = Float.intBitsToFloat((int) raw);
+                break;
+            case F64:
+                number = Double.longBitsToDouble(raw);
+                break;
+            case SFLOAT:
+                number = sfloat((int) raw);
+                break;
+            case FLOAT:
+                number = float11073((int) raw);
+                break;
+            default:
+                number = raw;
+                break;
+        }
+        return number * scales[field] + offsets[field];
+    }
+
+    // Reads the field at position, sign extended for the signed types
+    private long readRaw(byte[] value, long position, int field) {
+
+        int type = types[field];
+        int size = sizes[field];
+
+        if (type == BITS) {
+            long raw = 0;
+            for (int bit = 0; bit < size; bit++) {
+                long p = position + bit;
+                raw |= (long) ((value[(int) (p >> 3)] >> (p & 7)) & 1) << bit;
+            }
+            return raw;
+        }
+
+        int offset = (int) (position >> 3);
+        int bytes = size / 8;
+        long raw = 0;
+        for (int b = 0; b < bytes; b++) {
+            int index = bigEndian[field] ? offset + b : offset + bytes - 1 - b;
+            raw = (raw << 8) | (value[index] & 0xFF);
+        }
+
+        if (type == S8 || type == S16 || type == S24 || type == S32) {
+            int shift = 64 - size;
+            raw = (raw << shift) >> shift;
+        }
+        return raw;
+    }
+
+    // 12 bit mantissa and 4 bit exponent, both signed, with reserved values for special cases
+    static double sfloat(int raw) {
+
+        int mantissa = raw & 0x0FFF;
+        switch (mantissa) {
+            case 0x07FF:
+            case 0x0800:
+            case 0x0801:
+                return Double.NaN;
+            case 0x07FE:
+                return Double.POSITIVE_INFINITY;
+            case 0x0802:
+                return Double.NEGATIVE_INFINITY;
+        }
+        if (mantissa >= 0x0800) {
+            mantissa -= 0x1000;
+        }
+        int exponent = (raw >> 12) & 0x0F;
+        if (exponent >= 0x08) {
+            exponent -= 0x10;
+        }
+        return mantissa * Math.pow(10, exponent);
+    }
+
+    // 24 bit mantissa and 8 bit exponent, both signed
+    static double float11073(int raw) {
+
+        int mantissa = raw & 0x00FFFFFF;
+        switch (mantissa) {
+            case 0x007FFFFF:
+            case 0x00800000:
+            case 0x00800001:
+                return Double.NaN;
+            case 0x007FFFFE:
+                return Double.POSITIVE_INFINITY;
+            case 0x00800002:
+                return Double.NEGATIVE_INFINITY;
+        }
+        if (mantissa >= 0x00800000) {
+            mantissa -= 0x01000000;
+        }
+        int exponent = (byte) (raw >> 24);
+        return mantissa * Math.pow(10, exponent);
+    }
+
+    // Heart Rate Measurement (0x2A37): flags, heart rate, then optional energy expended and RR
+    // intervals. Gives heart_rate, contact_supported, contact and, when sent, energy_expended (kJ)
+    // and rr_intervals (seconds)
+    private static void decodeHeartRateMeasurement(byte[] value, int length, Map<String, Object> out) {
+
+        if (length < 2) {
+            return;
+        }
+
+        int flags = value[0] & 0xFF;
+        int position = 1;
+
+        if ((flags & 0x01) != 0) {
+            if (length < 3) {
+                return;
+            }
+            out.put("heart_rate", (value[1] & 0xFF) | (value[2] & 0xFF) << 8);
+            position = 3;
+        } else {
+            out.put("heart_rate", value[1] & 0xFF);
+            position = 2;
+        }
+
+        out.put("contact_supported", (flags & 0x04) != 0);
+        out.put("contact", (flags & 0x06) == 0x06);
+
+        if ((flags & 0x08) != 0 && position + 2 <= length) {
+            out.put("energy_expended", (value[position] & 0xFF) | (value[position + 1] & 0xFF) << 8);
+            position += 2;
+        }
+
+        if ((flags & 0x10) != 0) {
+            double[] intervals = new double[(length - position) / 2];
+            for (int i = 0; i < intervals.length; i++) {
+                int raw = (value[position] & 0xFF) | (value[position + 1] & 0xFF) << 8;
+                intervals[i] = raw / 1024.0;
+                position += 2;
+            }
+            out.put("rr_intervals", intervals);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdvertisementDataTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    @Test
+    public void parse_readsIBeacon() {
+        byte[] record = bytes(
+                0x02, 0x01, 0x06,
+                0x1A, 0xFF, 0x4C, 0x00, 0x02, 0x15,
+                0xE2, 0xC5, 0x6D, 0xB5, 0xDF, 0xFB, 0x48, 0xD2, 0xB0, 0x60, 0xD0, 0xF5, 0xA7, 0x10, 0x96, 0xE0,
+                0x00, 0x01, 0x00, 0x02, 0xC5);
+
+        AdvertisementData data = AdvertisementData.parse(record);
+
+        assertEquals(6, data.flags);
+        assertEquals(1, data.manufacturerData.size());
+        byte[] apple = data.manufacturerData.get(0x004C);
+        assertEquals(23, apple.length);
+        assertEquals(0x02, apple[0]);
+        assertEquals((byte) 0xC5, apple[22]);
+        assertEquals(AdvertisementData.NO_TX_POWER, data.txPower);
+    }
+
+    @Test
+    public void parse_readsEddystoneServiceData() {
+        byte[] record = bytes(
+                0x03, 0x03, 0xAA, 0xFE,
+                0x06, 0x16, 0xAA, 0xFE, 0x10, 0xEB, 0x01,
+                0x02, 0x0A, 0xF4);
+
+        AdvertisementData data = AdvertisementData.parse(record);
+
+        String eddystone = "0000feaa-0000-1000-8000-00805f9b34fb";
+        assertEquals(1, data.serviceUuids.size());
+        assertEquals(eddystone, data.serviceUuids.get(0));
+        assertArrayEquals(bytes(0x10, 0xEB, 0x01), data.serviceData.get(eddystone));
+        assertEquals(-12, data.txPower);
+        assertEquals(-1, data.flags);
+    }
+
+    @Test
+    public void parse_readsUuid128() {
+        byte[] record = bytes(
+                0x11, 0x07,
+                0x9E, 0xCA, 0xDC, 0x24, 0x0E, 0xE5, 0xA9, 0xE0, 0x93, 0xF3, 0xA3, 0xB5, 0x01, 0x00, 0x40, 0x6E);
+
+        AdvertisementData data = AdvertisementData.parse(record);
+
+        assertEquals("6e400001-b5a3-f393-e0a9-e50e24dcca9e", data.serviceUuids.get(0));
+    }
+
+    @Test
+    public void parse_stopsAtMalformedStructure() {
+        byte[] record = bytes(0x02, 0x01, 0x1A, 0x09, 0xFF, 0x4C, 0x00, 0x00, 0x00, 0x00);
+
+        AdvertisementData data = AdvertisementData.parse(record);
+
+        assertEquals(0x1A, data.flags);
+        assertTrue(data.manufacturerData.isEmpty());
+    }
+
+    @Test
+    public void parse_acceptsMissingRecord() {
+        AdvertisementData data = AdvertisementData.parse(null);
+
+        assertTrue(data.serviceUuids.isEmpty());
+        assertTrue(data.manufacturerData.isEmpty());
+    }
+
+    @Test
+    public void normalizeUuid_expandsShortUuids() {
+        assertEquals("0000180d-0000-1000-8000-00805f9b34fb", AdvertisementData.normalizeUuid("180D"));
+        assertEquals("6e400001-b5a3-f393-e0a9-e50e24dcca9e",
+                AdvertisementData.normalizeUuid("6E400001-B5A3-F393-E0A9-E50E24DCCA9E"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void normalizeUuid_rejectsInvalidUuids() {
+        AdvertisementData.normalizeUuid("zz");
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class AdvertisementFilterTest {
+
+    // Flags, then manufacturer data of company 0x004C starting with 02 15
+    private static final byte[] BEACON = new byte[]{
+            0x02, 0x01, 0x06, 0x07, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15, 0x01, 0x02};
+
+    private static Advertisement advertisement(int rssi) {
+        return new Advertisement("AA:00:00:00:00:01", null, rssi, BEACON, 0);
+    }
+
+    @Test
+    public void matches_manufacturerDataPrefix() {
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("manufacturer_id", 0x004C);
+        dictionary.put("manufacturer_data", new byte[]{0x02, 0x15});
+
+        assertTrue(AdvertisementFilter.fromDictionary(dictionary).matches(advertisement(-50)));
+
+        dictionary.put("manufacturer_data", new byte[]{0x02, 0x16});
+        assertFalse(AdvertisementFilter.fromDictionary(dictionary).matches(advertisement(-50)));
+
+        dictionary.put("manufacturer_data_mask", new byte[]{(byte) 0xFF, 0x00});
+        assertTrue(AdvertisementFilter.fromDictionary(dictionary).matches(advertisement(-50)));
+    }
+
+    @Test
+    public void matches_failsOnMissingFields() {
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("manufacturer_id", 0x0059);
+        assertFalse(AdvertisementFilter.fromDictionary(dictionary).matches(advertisement(-50)));
+
+        dictionary.clear();
+        dictionary.put("service_data_uuid", "feaa");
+        assertFalse(AdvertisementFilter.fromDictionary(dictionary).matches(advertisement(-50)));
+    }
+
+    @Test
+    public void matches_minRssi() {
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("min_rssi", -70);
+
+        AdvertisementFilter filter = AdvertisementFilter.fromDictionary(dictionary);
+        assertTrue(filter.matches(advertisement(-70)));
+        assertFalse(filter.matches(advertisement(-71)));
+    }
+
+    @Test
+    public void matches_nameAndAddress() {
+        Advertisement named = new Advertisement("AA:00:00:00:00:01", "Sensor 12", -50, BEACON, 0);
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+
+        dictionary.put("address", "aa:00:00:00:00:01");
+        assertTrue(AdvertisementFilter.fromDictionary(dictionary).matches(named));
+
+        dictionary.put("name_prefix", "Sensor");
+        assertTrue(AdvertisementFilter.fromDictionary(dictionary).matches(named));
+        assertFalse(AdvertisementFilter.fromDictionary(dictionary).matches(advertisement(-50)));
+
+        dictionary.put("name", "Sensor 1");
+        assertFalse(AdvertisementFilter.fromDictionary(dictionary).matches(named));
+
+        dictionary.clear();
+        dictionary.put("address", "AA:00:00:00:00:02");
+        assertFalse(AdvertisementFilter.fromDictionary(dictionary).matches(named));
+    }
+
+    @Test
+    public void identifiesDevice_needsMoreThanRssi() {
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        assertFalse(AdvertisementFilter.fromDictionary(dictionary).identifiesDevice());
+
+        dictionary.put("min_rssi", -70);
+        assertFalse(AdvertisementFilter.fromDictionary(dictionary).identifiesDevice());
+
+        dictionary.put("name_prefix", "Sensor");
+        assertTrue(AdvertisementFilter.fromDictionary(dictionary).identifiesDevice());
+
+        dictionary.clear();
+        dictionary.put("manufacturer_id", 0x004C);
+        assertTrue(AdvertisementFilter.fromDictionary(dictionary).identifiesDevice());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromDictionary_rejectsShortMask() {
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("manufacturer_id", 0x004C);
+        dictionary.put("manufacturer_data", new byte[]{0x02, 0x15});
+        dictionary.put("manufacturer_data_mask", new byte[]{0x02});
+
+        AdvertisementFilter.fromDictionary(dictionary);
+    }
+}
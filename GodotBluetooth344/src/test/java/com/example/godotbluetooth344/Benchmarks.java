@@ -0,0 +1,375 @@
+package com.example.godotbluetooth344;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Measures the hot paths of the plugin against a SimulatedPeripheral, no Bluetooth needed.
+// Run with ./gradlew :GodotBluetooth344:benchmark, every line reports the time and the bytes
+// allocated per operation, compare them with the ones of the previous release
+public class Benchmarks {
+
+    interface Benchmark {
+        void run(int operations);
+    }
+
+    static class Result {
+        final String name;
+        final double nanosPerOperation;
+        final double bytesPerOperation; // -1 when the JVM cannot count allocations
+
+        Result(String name, double nanosPerOperation, double bytesPerOperation) {
+            this.name = name;
+            this.nanosPerOperation = nanosPerOperation;
+            this.bytesPerOperation = bytesPerOperation;
+        }
+    }
+
+    static Map<String, Benchmark> all() {
+
+        Map<String, Benchmark> benchmarks = new LinkedHashMap<String, Benchmark>();
+
+        benchmarks.put("scan, 200 devices, duplicates reported", scan(200, false));
+        benchmarks.put("scan, 200 devices, coalesced", scan(200, true));
+        benchmarks.put("scan, 200 devices, filtered and parsed", scanFiltered(200));
+        benchmarks.put("notifications, 20 bytes, sent one by one", notifications(20, false));
+        benchmarks.put("notifications, 20 bytes, batched every 64", notifications(20, true));
+        benchmarks.put("notifications, 20 bytes, framed into 190 byte messages", framing(20, 10));
+        benchmarks.put("notifications, 20 bytes, decoded into a timestamp and 8 samples", decoding());
+        benchmarks.put("writes, 20 bytes, queued", writes(20, false));
+        benchmarks.put("writes, 20 bytes, latest value only", writes(20, true));
+        benchmarks.put("events, queued and polled 16 at a time", events(16));
+        benchmarks.put("stream, 244 byte chunks", stream(244));
+
+        return benchmarks;
+    }
+
+    // Advertisement floods through the ScanProcessor, as delivered by the scan callback
+    static Benchmark scan(int devices, final boolean coalescing) {
+
+        final SimulatedPeripheral peripheral = new SimulatedPeripheral(devices, 31);
+        final ScanProcessor processor = new ScanProcessor(new DeviceRegistry(1024, 0), new ScanProcessor.Listener() {
+            @Override
+            public void onDeviceFound(Advertisement advertisement) {
+                sink += advertisement.rssi;
+            }
+        });
+
+        if (coalescing) {
+            processor.coalescer = new ScanCoalescer<Advertisement>(100);
+        }
+
+        peripheral.start(new ScanConfiguration(), new ScanTransport.Listener() {
+            long now = 0;
+
+            @Override
+            public void onAdvertisement(Advertisement advertisement) {
+                processor.process(advertisement, now++);
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+            }
+        });
+
+        return new Benchmark() {
+            long now = 0;
+
+            @Override
+            public void run(int operations) {
+                // The coalescer is drained every 1000 advertisements, like its timer does
+                for (int sent = 0; sent < operations; sent += 1000) {
+                    peripheral.advertise(Math.min(1000, operations - sent));
+                    if (coalescing) {
+                        sink += processor.coalescer.collect(now += 1000).size();
+                    }
+                }
+            }
+        };
+    }
+
+    // Advertisements checked by a manufacturer data filter that matches half of the devices, the
+    // ones reported are parsed again to build their Dictionary
+    static Benchmark scanFiltered(int devices) {
+
+        final SimulatedPeripheral peripheral = new SimulatedPeripheral(devices, 31);
+        final ScanProcessor processor = new ScanProcessor(new DeviceRegistry(1024, 0), new ScanProcessor.Listener() {
+            @Override
+            public void onDeviceFound(Advertisement advertisement) {
+                sink += advertisement.getData().manufacturerData.size();
+            }
+        });
+
+        AdvertisementFilter filter = new AdvertisementFilter();
+        filter.manufacturerId = 0x004C;
+        filter.manufacturerData = new byte[]{0};
+        filter.manufacturerDataMask = new byte[]{1}; // Even devices
+        processor.filters.add(filter);
+
+        peripheral.start(new ScanConfiguration(), new ScanTransport.Listener() {
+            long now = 0;
+
+            @Override
+            public void onAdvertisement(Advertisement advertisement) {
+                processor.process(advertisement, now++);
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+            }
+        });
+
+        return new Benchmark() {
+            @Override
+            public void run(int operations) {
+                peripheral.advertise(operations);
+            }
+        };
+    }
+
+    // The work done in onCharacteristicChanged for every notification
+    static Benchmark notifications(int payloadSize, final boolean batching) {
+
+        final SimulatedPeripheral peripheral = new SimulatedPeripheral(1, payloadSize);
+        final GattTrace trace = new GattTrace(1024);
+        final LinkMetrics metrics = new LinkMetrics();
+        final NotificationBatcher batcher = new NotificationBatcher(64);
+        final long address = DeviceRegistry.addressToLong("C0:FF:EE:00:00:01");
+
+        final SimulatedPeripheral.NotificationListener listener = new SimulatedPeripheral.NotificationListener() {
+            @Override
+            public void onNotification(BluetoothGattCharacteristic characteristic, byte[] value, long timeNanos) {
+
+                trace.record(timeNanos, GattTrace.NOTIFICATION, address, 1, 0, value.length);
+                metrics.notifications.incrementAndGet();
+                metrics.notificationBytes.addAndGet(value.length);
+
+                if (batching) {
+                    if (batcher.add(characteristic, value, timeNanos)) {
+                        sink += batcher.flush().count;
+                    }
+                } else {
+                    sink += value.length;
+                }
+            }
+        };
+
+        return new Benchmark() {
+            @Override
+            public void run(int operations) {
+                // 7.5 ms between notifications, the shortest connection interval
+                peripheral.notify(listener, operations, 7500000);
+            }
+        };
+    }
+
+    // Sequenced fragments rebuilt into messages by a MessageFramer, one message every fragments
+    // notifications
+    static Benchmark framing(int payloadSize, int fragments) {
+
+        final byte[][] values = new byte[fragments * 128][payloadSize];
+        for (int i = 0; i < values.length; i++) {
+            boolean last = i % fragments == fragments - 1;
+            values[i][0] = (byte) ((i & 0x7F) | (last ? 0x80 : 0));
+        }
+
+        final MessageFramer framer = new MessageFramer(MessageFramer.SEQUENCED, 2, null, 65536, new MessageFramer.Listener() {
+            @Override
+            public void onMessage(byte[] buffer, int length) {
+                sink += length;
+            }
+
+            @Override
+            public void onError(int error) {
+                throw new IllegalStateException("Fragment lost " + error);
+            }
+        });
+
+        return new Benchmark() {
+            int next = 0;
+
+            @Override
+            public void run(int operations) {
+                for (int i = 0; i < operations; i++) {
+                    framer.add(values[next]);
+                    next = (next + 1) % values.length;
+                }
+            }
+        };
+    }
+
+    // Accelerometer samples decoded by a ValueDecoder: a timestamp, then x, y and z repeated
+    static Benchmark decoding() {
+
+        Map<String, Object> timestamp = new HashMap<String, Object>();
+        timestamp.put("name", "timestamp");
+        timestamp.put("type", "u32");
+        Map<String, Object> samples = new HashMap<String, Object>();
+        samples.put("name", "samples");
+        samples.put("type", "s16");
+        samples.put("scale", 0.001);
+        samples.put("count", 0);
+        Map<String, Object> schema = new HashMap<String, Object>();
+        schema.put("fields", new Object[]{timestamp, samples});
+
+        final ValueDecoder decoder = ValueDecoder.fromDictionary(schema);
+        final byte[] value = new byte[20];
+        final Map<String, Object> values = new HashMap<String, Object>();
+
+        return new Benchmark() {
+            @Override
+            public void run(int operations) {
+                for (int i = 0; i < operations; i++) {
+                    decoder.decode(value, value.length, values);
+                    sink += values.size();
+                }
+            }
+        };
+    }
+
+    // Events going through the EventRing instead of emitSignal, taken as pollEvents does
+    static Benchmark events(final int perPoll) {
+
+        final EventRing ring = new EventRing(1024, EventRing.DROP_NEWEST);
+        final Object[] out = new Object[perPoll];
+        final Object event = new Object[]{"_on_characteristic_read", null};
+
+        return new Benchmark() {
+            @Override
+            public void run(int operations) {
+                for (int i = 0; i < operations; i++) {
+                    ring.offer(event);
+                    if (i % perPoll == perPoll - 1) {
+                        sink += ring.poll(out, perPoll);
+                    }
+                }
+                sink += ring.poll(out, perPoll);
+            }
+        };
+    }
+
+    // Writes going through the GattOperationQueue, answered by the peripheral one by one. With
+    // latest, every write replaces the one waiting
+    static Benchmark writes(int payloadSize, final boolean latest) {
+
+        final SimulatedPeripheral peripheral = new SimulatedPeripheral(1, payloadSize);
+        final GattOperationQueue queue = new GattOperationQueue(new Handler(), SimulatedPeripheral.CALLER, 5000, metricsListener());
+        final byte[] value = new byte[payloadSize];
+        peripheral.attach(queue);
+
+        return new Benchmark() {
+            @Override
+            public void run(int operations) {
+                for (int i = 0; i < operations; i++) {
+                    if (latest) {
+                        queue.enqueueLatest(GattOperation.write(peripheral.characteristic, value));
+                    } else {
+                        queue.enqueue(GattOperation.write(peripheral.characteristic, value));
+                    }
+                }
+                peripheral.pump();
+            }
+        };
+    }
+
+    // A single stream split in chunks of chunkSize bytes, every operation is a chunk
+    static Benchmark stream(final int chunkSize) {
+
+        final SimulatedPeripheral peripheral = new SimulatedPeripheral(1, 0);
+        final GattOperationQueue queue = new GattOperationQueue(new Handler(), SimulatedPeripheral.CALLER, 5000, metricsListener());
+        peripheral.attach(queue);
+        queue.setMtu(chunkSize + 3);
+
+        return new Benchmark() {
+            byte[] data = new byte[0]; // Reused between rounds so its allocation is not measured
+
+            @Override
+            public void run(int operations) {
+                if (data.length != operations * chunkSize) {
+                    data = new byte[operations * chunkSize];
+                }
+                queue.enqueue(GattOperation.stream(peripheral.characteristic, data));
+                peripheral.pump();
+            }
+        };
+    }
+
+    // Does what the OperationListener of BluetoothManager does, without the signals
+    private static GattOperationQueue.Listener metricsListener() {
+
+        final LinkMetrics metrics = new LinkMetrics();
+
+        return new GattOperationQueue.Listener() {
+            @Override
+            public void onOperationComplete(GattOperation operation, int status) {
+                metrics.writes.incrementAndGet();
+                metrics.writeLatency.record(System.nanoTime() - operation.startTime);
+            }
+
+            @Override
+            public void onOperationProgress(GattOperation operation) {
+                sink += operation.offset;
+            }
+        };
+    }
+
+    // Results are added here so the JIT cannot remove the work as unused
+    static volatile long sink = 0;
+
+    static Result measure(String name, Benchmark benchmark, int operations, int rounds) {
+
+        // Warm up, so the JIT compiles the path before it is measured
+        for (int i = 0; i < rounds; i++) {
+            benchmark.run(operations);
+        }
+
+        // The best round is kept, the others were slowed down by something else
+        long bestTime = Long.MAX_VALUE;
+        long bestAllocated = Long.MAX_VALUE;
+
+        for (int i = 0; i < rounds; i++) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+
+            benchmark.run(operations);
+
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+            bestAllocated = Math.min(bestAllocated, allocatedBytes() - allocated);
+        }
+
+        return new Result(name, (double) bestTime / operations,
+                allocatedBytes() >= 0 ? (double) bestAllocated / operations : -1);
+    }
+
+    // Bytes allocated by this thread so far, -1 if the JVM does not count them
+    private static long allocatedBytes() {
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    // Arguments: operations per round (default 100000) and rounds (default 10)
+    public static void main(String[] args) {
+
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        System.out.println(String.format(Locale.ROOT, "%-45s %12s %12s %12s", "benchmark", "ns/op", "ops/s", "bytes/op"));
+
+        for (Map.Entry<String, Benchmark> entry : all().entrySet()) {
+            Result result = measure(entry.getKey(), entry.getValue(), operations, rounds);
+
+            System.out.println(String.format(Locale.ROOT, "%-45s %12.1f %12.0f %12.1f", result.name,
+                    result.nanosPerOperation, 1e9 / result.nanosPerOperation, result.bytesPerOperation));
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+// Runs every benchmark for a few operations, so they keep working between releases
+public class BenchmarksTest {
+
+    @Test
+    public void benchmarks_run() {
+        for (Map.Entry<String, Benchmarks.Benchmark> entry : Benchmarks.all().entrySet()) {
+            Benchmarks.Result result = Benchmarks.measure(entry.getKey(), entry.getValue(), 100, 1);
+            assertTrue(entry.getKey(), result.nanosPerOperation > 0);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.godotbluetooth344;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+// A TCP connection on the loopback stands in for the L2CAP socket
+public class ChannelStreamTest {
+
+    private static class Collector implements ChannelStream.Listener {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final CountDownLatch closed = new CountDownLatch(1);
+        final AtomicInteger closes = new AtomicInteger();
+        final AtomicReference<IOException> error = new AtomicReference<IOException>();
+
+        @Override
+        public synchronized void onData(byte[] buffer, int length) {
+            received.write(buffer, 0, length);
+            notifyAll();
+        }
+
+        @Override
+        public void onClosed(IOException e) {
+            error.set(e);
+            closes.incrementAndGet();
+            closed.countDown();
+        }
+
+        synchronized byte[] await(int length) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (received.size() < length && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            return received.toByteArray();
+        }
+    }
+
+    private ServerSocket server;
+    private Socket client;
+    private Socket peer;
+
+    @Before
+    public void connect() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        peer = server.accept();
+    }
+
+    @After
+    public void disconnect() throws IOException {
+        client.close();
+        peer.close();
+        server.close();
+    }
+
+    private ChannelStream stream(Collector collector, int queueSize) throws IOException {
+        return new ChannelStream(client.getInputStream(), client.getOutputStream(), client, 16, queueSize, collector);
+    }
+
+    @Test
+    public void send_reachesPeerInOrder() throws Exception {
+        Collector collector = new Collector();
+        ChannelStream stream = stream(collector, 64);
+        stream.start("test");
+
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        assertTrue(stream.send(data));
+        assertTrue(stream.send(new byte[]{42}));
+
+        byte[] received = new byte[1001];
+        InputStream input = peer.getInputStream();
+        int read = 0;
+        while (read < received.length) {
+            read += input.read(received, read, received.length - read);
+        }
+
+        assertEquals(5, received[5]);
+        assertEquals(42, received[1000]);
+        stream.close();
+    }
+
+    @Test
+    public void send_beforeStartIsSentOnceStarted() throws Exception {
+        Collector collector = new Collector();
+        ChannelStream stream = stream(collector, 64);
+
+        assertTrue(stream.send(new byte[]{1, 2}));
+        assertEquals(1, stream.queued());
+        stream.start("test");
+
+        InputStream input = peer.getInputStream();
+        assertEquals(1, input.read());
+        assertEquals(2, input.read());
+        stream.close();
+    }
+
+    @Test
+    public void onData_deliversEverythingThroughSmallBuffer() throws Exception {
+        Collector collector = new Collector();
+        ChannelStream stream = stream(collector, 64);
+        stream.start("test");
+
+        byte[] data = new byte[100];
+        data[99] = 7;
+        peer.getOutputStream().write(data);
+
+        byte[] received = collector.await(100);
+        assertEquals(100, received.length);
+        assertEquals(7, received[99]);
+        assertEquals(100, stream.bytesReceived.get());
+        stream.close();
+    }
+
+    @Test
+    public void onClosed_reportsPeerClosing() throws Exception {
+        Collector collector = new Collector();
+        ChannelStream stream = stream(collector, 64);
+        stream.start("test");
+
+        peer.close();
+
+        assertTrue(collector.closed.await(5, TimeUnit.SECONDS));
+        assertTrue(collector.error.get() instanceof EOFException);
+        assertFalse(stream.send(new byte[1]));
+    }
+
+    @Test
+    public void close_reportsOnceWithoutError() throws Exception {
+        Collector collector = new Collector();
+        ChannelStream stream = stream(collector, 64);
+        stream.start("test");
+
+        stream.close();
+        stream.close();
+
+        assertTrue(collector.closed.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, collector.closes.get());
+        assertNull(collector.error.get());
+        assertTrue(stream.isClosed());
+    }
+
+    @Test
+    public void send_failsWhenQueueIsFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream blocked = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+
+        Collector collector = new Collector();
+        ChannelStream stream = new ChannelStream(client.getInputStream(), blocked, client, 16, 2, collector);
+        stream.start("test");
+
+        // The writer takes the first one and blocks, two more fit in the queue
+        assertTrue(stream.send(new byte[1]));
+        long end = System.currentTimeMillis() + 5000;
+        while (stream.queued() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertTrue(stream.send(new byte[1]));
+        assertTrue(stream.send(new byte[1]));
+        assertFalse(stream.send(new byte[1]));
+
+        release.countDown();
+        stream.close();
+    }
+}
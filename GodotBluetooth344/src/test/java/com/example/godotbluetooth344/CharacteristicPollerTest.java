@@ -0,0 +1,78 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CharacteristicPollerTest {
+
+    private static final String DEVICE_A = "AA:00:00:00:00:01";
+    private static final String DEVICE_B = "AA:00:00:00:00:02";
+
+    @Test
+    public void due_readsOneCharacteristicPerDevice() {
+        CharacteristicPoller poller = new CharacteristicPoller();
+        poller.add(0, DEVICE_A, 100, 0);
+        poller.add(1, DEVICE_A, 100, 0);
+        poller.add(2, DEVICE_B, 100, 0);
+
+        List<CharacteristicPoller.Entry> reads = poller.due(0);
+        assertEquals(2, reads.size());
+
+        // Both devices are reading, nothing else is sent until they finish
+        assertTrue(poller.due(10).isEmpty());
+        assertEquals(Long.MAX_VALUE, poller.nextRead());
+
+        poller.onReadComplete(DEVICE_A);
+        reads = poller.due(10);
+        assertEquals(1, reads.size());
+        assertEquals(1, reads.get(0).handle);
+    }
+
+    @Test
+    public void due_choosesTheMostOverdue() {
+        CharacteristicPoller poller = new CharacteristicPoller();
+        poller.add(0, DEVICE_A, 10, 0);
+        poller.add(1, DEVICE_A, 1000, 0);
+
+        int[] readsOf = new int[2];
+        for (long now = 0; now < 1000; now += 5) {
+            for (CharacteristicPoller.Entry entry : poller.due(now)) {
+                readsOf[entry.handle]++;
+                poller.onReadComplete(entry.address);
+            }
+        }
+
+        // The slow characteristic is not starved by the fast one
+        assertTrue(readsOf[0] > 50);
+        assertTrue(readsOf[1] >= 1);
+    }
+
+    @Test
+    public void due_lateReadsDoNotBurst() {
+        CharacteristicPoller poller = new CharacteristicPoller();
+        poller.add(0, DEVICE_A, 10, 0);
+
+        assertEquals(1, poller.due(0).size());
+        poller.onReadComplete(DEVICE_A);
+
+        // The read was 100 ms late, it is sent once and the next one waits for its interval
+        assertEquals(1, poller.due(100).size());
+        poller.onReadComplete(DEVICE_A);
+        assertTrue(poller.due(100).isEmpty());
+        assertEquals(110, poller.nextRead());
+    }
+
+    @Test
+    public void remove_stopsReads() {
+        CharacteristicPoller poller = new CharacteristicPoller();
+        poller.add(0, DEVICE_A, 10, 0);
+
+        assertTrue(poller.remove(0));
+        assertFalse(poller.remove(0));
+        assertTrue(poller.isEmpty());
+        assertTrue(poller.due(100).isEmpty());
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+
+    @Test
+    public void address_roundTrips() {
+        long value = DeviceRegistry.addressToLong("A1:B2:C3:D4:E5:F6");
+
+        assertEquals(0xA1B2C3D4E5F6L, value);
+        assertEquals("A1:B2:C3:D4:E5:F6", DeviceRegistry.longToAddress(value));
+    }
+
+    @Test
+    public void update_reportsNewDevicesOnce() {
+        DeviceRegistry registry = new DeviceRegistry(0, 0);
+
+        assertTrue(registry.update("00:00:00:00:00:01", "a", -50, 0));
+        assertFalse(registry.update("00:00:00:00:00:01", null, -40, 1));
+
+        DeviceRegistry.Record record = registry.snapshot(1).get(0);
+        assertEquals("a", record.name);
+        assertEquals(-40, record.rssi);
+        assertEquals(1, record.lastSeen);
+    }
+
+    @Test
+    public void update_evictsLeastRecentlySeen() {
+        DeviceRegistry registry = new DeviceRegistry(2, 0);
+        final List<String> evicted = new ArrayList<String>();
+        registry.setEvictionListener(new DeviceRegistry.EvictionListener() {
+            @Override
+            public void onEvicted(String address) {
+                evicted.add(address);
+            }
+        });
+
+        registry.update("00:00:00:00:00:01", null, 0, 0);
+        registry.update("00:00:00:00:00:02", null, 0, 1);
+        registry.update("00:00:00:00:00:01", null, 0, 2);
+        registry.update("00:00:00:00:00:03", null, 0, 3);
+
+        assertEquals(2, registry.size());
+        assertTrue(registry.contains("00:00:00:00:00:01"));
+        assertFalse(registry.contains("00:00:00:00:00:02"));
+        assertEquals("00:00:00:00:00:02", evicted.get(0));
+    }
+
+    @Test
+    public void update_evictsExpiredDevices() {
+        DeviceRegistry registry = new DeviceRegistry(0, 1000);
+
+        registry.update("00:00:00:00:00:01", null, 0, 0);
+        registry.update("00:00:00:00:00:02", null, 0, 900);
+        registry.update("00:00:00:00:00:02", null, 0, 1500);
+
+        assertFalse(registry.contains("00:00:00:00:00:01"));
+        assertTrue(registry.contains("00:00:00:00:00:02"));
+    }
+
+    @Test
+    public void snapshot_forgetsExpiredDevices() {
+        DeviceRegistry registry = new DeviceRegistry(0, 1000);
+
+        registry.update("00:00:00:00:00:01", null, 0, 0);
+        registry.update("00:00:00:00:00:02", null, 0, 500);
+
+        assertEquals(2, registry.snapshot(1000).size());
+        assertEquals(1, registry.snapshot(1200).size());
+        assertFalse(registry.contains("00:00:00:00:00:01"));
+        assertEquals(0, registry.snapshot(1600).size());
+    }
+}
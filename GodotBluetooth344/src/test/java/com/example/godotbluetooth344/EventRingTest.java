@@ -0,0 +1,114 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EventRingTest {
+
+    @Test
+    public void poll_takesInOrder() {
+        EventRing ring = new EventRing(4, EventRing.DROP_NEWEST);
+        Object[] out = new Object[4];
+
+        assertTrue(ring.offer(1));
+        assertTrue(ring.offer(2));
+        assertTrue(ring.offer(3));
+
+        assertEquals(2, ring.poll(out, 2));
+        assertEquals(1, out[0]);
+        assertEquals(2, out[1]);
+        assertEquals(1, ring.poll(out, 4));
+        assertEquals(3, out[0]);
+        assertEquals(0, ring.poll(out, 4));
+    }
+
+    @Test
+    public void capacity_roundsUpToPowerOfTwo() {
+        assertEquals(8, new EventRing(5, EventRing.DROP_NEWEST).capacity);
+        assertEquals(8, new EventRing(8, EventRing.DROP_NEWEST).capacity);
+        assertEquals(2, new EventRing(1, EventRing.DROP_NEWEST).capacity);
+    }
+
+    @Test
+    public void dropNewest_keepsOldEvents() {
+        EventRing ring = new EventRing(2, EventRing.DROP_NEWEST);
+        Object[] out = new Object[4];
+
+        ring.offer(1);
+        ring.offer(2);
+        assertFalse(ring.offer(3));
+
+        assertEquals(2, ring.poll(out, 4));
+        assertEquals(1, out[0]);
+        assertEquals(2, out[1]);
+        assertEquals(1, ring.dropped.get());
+    }
+
+    @Test
+    public void dropOldest_keepsNewEvents() {
+        EventRing ring = new EventRing(2, EventRing.DROP_OLDEST);
+        Object[] out = new Object[4];
+
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(ring.offer(i));
+        }
+
+        assertEquals(2, ring.poll(out, 4));
+        assertEquals(4, out[0]);
+        assertEquals(5, out[1]);
+        assertEquals(3, ring.dropped.get());
+    }
+
+    @Test
+    public void reportDrops_queuesOverflowWhereTheGapIs() {
+        EventRing ring = new EventRing(2, EventRing.REPORT_DROPS);
+        Object[] out = new Object[4];
+
+        ring.offer(1);
+        ring.offer(2);
+        assertFalse(ring.offer(3));
+        assertFalse(ring.offer(4));
+
+        assertEquals(2, ring.poll(out, 4));
+        assertTrue(ring.offer(5));
+
+        assertEquals(2, ring.poll(out, 4));
+        assertEquals(2, ((EventRing.Overflow) out[0]).count);
+        assertEquals(5, out[1]);
+        assertEquals(2, ring.dropped.get());
+    }
+
+    @Test
+    public void poll_whileProducerRuns() throws Exception {
+        final EventRing ring = new EventRing(64, EventRing.DROP_OLDEST);
+        final int total = 200000;
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < total; i++) {
+                    ring.offer(i);
+                }
+            }
+        });
+        producer.start();
+
+        Object[] out = new Object[16];
+        int last = -1;
+        long taken = 0;
+        while (producer.isAlive() || ring.size() > 0) {
+            int count = ring.poll(out, out.length);
+            for (int i = 0; i < count; i++) {
+                int value = (Integer) out[i];
+                assertTrue(value > last);
+                last = value;
+            }
+            taken += count;
+        }
+        producer.join();
+
+        // Every event was either taken or counted as dropped
+        assertEquals(total, taken + ring.dropped.get());
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GattLayoutTest {
+
+    private static final String HEART_RATE = "0000180d-0000-1000-8000-00805f9b34fb";
+    private static final String MEASUREMENT = "00002a37-0000-1000-8000-00805f9b34fb";
+    private static final String CONTROL_POINT = "00002a39-0000-1000-8000-00805f9b34fb";
+
+    private static GattLayout heartRateLayout() {
+        GattLayout layout = new GattLayout();
+        layout.add(HEART_RATE, MEASUREMENT, 0x10);
+        layout.add(HEART_RATE, CONTROL_POINT.toUpperCase(), 0x08);
+        return layout;
+    }
+
+    @Test
+    public void serialize_roundTrip() {
+        GattLayout layout = heartRateLayout();
+        layout.firmware = "1.2.3";
+
+        GattLayout parsed = GattLayout.parse(layout.serialize());
+
+        assertNotNull(parsed);
+        assertEquals("1.2.3", parsed.firmware);
+        assertEquals(2, parsed.size());
+        assertTrue(parsed.sameCharacteristics(layout));
+        assertEquals(CONTROL_POINT, parsed.characteristicUuids.get(1));
+        assertEquals(0x08, (int) parsed.properties.get(1));
+    }
+
+    @Test
+    public void serialize_withoutFirmware() {
+        GattLayout parsed = GattLayout.parse(heartRateLayout().serialize());
+
+        assertNotNull(parsed);
+        assertNull(parsed.firmware);
+    }
+
+    @Test
+    public void parse_rejectsOtherFormats() {
+        assertNull(GattLayout.parse(null));
+        assertNull(GattLayout.parse(""));
+        assertNull(GattLayout.parse("2\n\n" + HEART_RATE + " " + MEASUREMENT + " 16\n"));
+        assertNull(GattLayout.parse("1\n\n" + HEART_RATE + " " + MEASUREMENT + "\n"));
+        assertNull(GattLayout.parse("1\n\n" + HEART_RATE + " " + MEASUREMENT + " notify\n"));
+    }
+
+    @Test
+    public void contains_ignoresCase() {
+        GattLayout layout = heartRateLayout();
+
+        assertTrue(layout.contains(HEART_RATE.toUpperCase(), MEASUREMENT));
+        assertTrue(layout.contains(HEART_RATE, CONTROL_POINT));
+        assertFalse(layout.contains(CONTROL_POINT, HEART_RATE));
+    }
+
+    @Test
+    public void sameCharacteristics_ignoresFirmware() {
+        GattLayout layout = heartRateLayout();
+        GattLayout other = heartRateLayout();
+        other.firmware = "2.0";
+
+        assertTrue(layout.sameCharacteristics(other));
+        assertFalse(layout.sameCharacteristics(null));
+
+        other.add(HEART_RATE, "00002a38-0000-1000-8000-00805f9b34fb", 0x02);
+        assertFalse(layout.sameCharacteristics(other));
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.godotbluetooth344;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+
+    private final List<GattOperation> completed = new ArrayList<GattOperation>();
+    private final List<Integer> statuses = new ArrayList<Integer>();
+    private int progress = 0;
+
+    private SimulatedPeripheral peripheral;
+    private GattOperationQueue queue;
+
+    @Before
+    public void setUp() {
+        peripheral = new SimulatedPeripheral(1, 0);
+        queue = new GattOperationQueue(new Handler(), SimulatedPeripheral.CALLER, 5000, new GattOperationQueue.Listener() {
+            @Override
+            public void onOperationComplete(GattOperation operation, int status) {
+                completed.add(operation);
+                statuses.add(status);
+            }
+
+            @Override
+            public void onOperationProgress(GattOperation operation) {
+                progress++;
+            }
+        });
+    }
+
+    @Test
+    public void enqueue_waitsForTransport() {
+        queue.enqueue(GattOperation.write(peripheral.characteristic, new byte[]{1}));
+        assertEquals(0, peripheral.writes);
+
+        peripheral.attach(queue);
+        assertEquals(1, peripheral.writes);
+    }
+
+    @Test
+    public void enqueue_sendsFromTheSender() {
+        final List<Runnable> posted = new ArrayList<Runnable>();
+        GattOperationQueue posting = new GattOperationQueue(new Handler(), new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                posted.add(runnable);
+            }
+        }, 5000, null);
+        peripheral.attach(posting);
+
+        posting.enqueue(GattOperation.write(peripheral.characteristic, new byte[]{1}));
+        assertEquals(0, peripheral.writes);
+
+        posted.get(0).run();
+        assertEquals(1, peripheral.writes);
+    }
+
+    @Test
+    public void onCallback_sendsOneOperationAtATime() {
+        peripheral.attach(queue);
+
+        GattOperation first = GattOperation.write(peripheral.characteristic, new byte[]{1});
+        GattOperation second = GattOperation.read(peripheral.characteristic);
+        queue.enqueue(first);
+        queue.enqueue(second);
+
+        assertEquals(1, peripheral.writes);
+        assertEquals(0, peripheral.reads);
+        assertEquals(2, queue.size());
+
+        assertEquals(2, peripheral.pump());
+        assertEquals(1, peripheral.reads);
+        assertEquals(0, queue.size());
+        assertEquals(first, completed.get(0));
+        assertEquals(second, completed.get(1));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, (int) statuses.get(0));
+    }
+
+    @Test
+    public void stream_splitsValueByMtu() {
+        peripheral.attach(queue);
+        queue.setMtu(23);
+
+        queue.enqueue(GattOperation.stream(peripheral.characteristic, new byte[50]));
+        peripheral.pump();
+
+        // 20 + 20 + 10 bytes
+        assertEquals(3, peripheral.writes);
+        assertEquals(50, peripheral.bytesWritten);
+        assertEquals(2, progress);
+        assertEquals(1, completed.size());
+    }
+
+    @Test
+    public void enqueueLatest_keepsOnlyNewestValueWaiting() {
+        peripheral.attach(queue);
+
+        // The first write is sent at once, the next ones share the single waiting write
+        assertTrue(queue.enqueueLatest(GattOperation.write(peripheral.characteristic, new byte[]{1})));
+        assertTrue(queue.enqueueLatest(GattOperation.write(peripheral.characteristic, new byte[]{2})));
+        assertFalse(queue.enqueueLatest(GattOperation.write(peripheral.characteristic, new byte[]{3})));
+        assertFalse(queue.enqueueLatest(GattOperation.write(peripheral.characteristic, new byte[]{4})));
+        assertEquals(2, queue.size());
+
+        assertEquals(2, peripheral.pump());
+        assertEquals(2, peripheral.writes);
+        assertArrayEquals(new byte[]{1}, completed.get(0).value);
+        assertArrayEquals(new byte[]{4}, completed.get(1).value);
+        assertEquals(2, completed.get(1).superseded);
+    }
+
+    @Test
+    public void enqueueLatest_leavesOtherWritesQueued() {
+        peripheral.attach(queue);
+
+        queue.enqueue(GattOperation.read(peripheral.characteristic));
+        queue.enqueue(GattOperation.write(peripheral.characteristic, new byte[]{1}));
+        assertTrue(queue.enqueueLatest(GattOperation.write(peripheral.characteristic, new byte[]{2})));
+        assertFalse(queue.enqueueLatest(GattOperation.write(peripheral.characteristic, new byte[]{3})));
+
+        assertEquals(3, peripheral.pump());
+        assertArrayEquals(new byte[]{1}, completed.get(1).value);
+        assertArrayEquals(new byte[]{3}, completed.get(2).value);
+    }
+
+    @Test
+    public void clear_cancelsPendingOperations() {
+        peripheral.attach(queue);
+
+        queue.enqueue(GattOperation.write(peripheral.characteristic, new byte[]{1}));
+        queue.enqueue(GattOperation.write(peripheral.characteristic, new byte[]{2}));
+        queue.clear();
+
+        assertEquals(2, completed.size());
+        assertEquals(GattOperationQueue.STATUS_CANCELLED, (int) statuses.get(1));
+        assertEquals(0, queue.size());
+    }
+}
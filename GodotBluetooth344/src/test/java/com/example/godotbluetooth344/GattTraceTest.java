@@ -0,0 +1,39 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GattTraceTest {
+
+    @Test
+    public void snapshot_returnsEventsInOrder() {
+        GattTrace trace = new GattTrace(4);
+
+        trace.record(10, GattTrace.CONNECTED, 1, -1, 0, 0);
+        trace.record(20, GattTrace.NOTIFICATION, 1, 3, 0, 20);
+
+        GattTrace.Snapshot snapshot = trace.snapshot();
+        assertEquals(2, snapshot.count);
+        assertArrayEquals(new long[]{10, 20}, snapshot.times);
+        assertArrayEquals(new int[]{GattTrace.CONNECTED, GattTrace.NOTIFICATION}, snapshot.events);
+        assertArrayEquals(new int[]{-1, 3}, snapshot.handles);
+        assertArrayEquals(new int[]{0, 20}, snapshot.lengths);
+    }
+
+    @Test
+    public void record_overwritesOldestEvents() {
+        GattTrace trace = new GattTrace(3);
+
+        for (int i = 0; i < 5; i++) {
+            trace.record(i, GattTrace.WRITE, 0, 0, 0, i);
+        }
+
+        GattTrace.Snapshot snapshot = trace.snapshot();
+        assertEquals(3, snapshot.count);
+        assertArrayEquals(new long[]{2, 3, 4}, snapshot.times);
+
+        trace.clear();
+        assertEquals(0, trace.snapshot().count);
+    }
+}
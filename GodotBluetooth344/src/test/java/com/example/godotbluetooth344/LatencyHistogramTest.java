@@ -0,0 +1,32 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void record_fillsBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(500000); // 0.5 ms
+        histogram.record(1000000); // 1 ms, still the first bucket
+        histogram.record(3000000); // 3 ms
+        histogram.record(60000000000L); // 60 s, slower than every bound
+
+        int[] buckets = histogram.getBuckets();
+        assertEquals(LatencyHistogram.BOUNDS.length + 1, buckets.length);
+        assertEquals(2, buckets[0]);
+        assertEquals(1, buckets[2]);
+        assertEquals(1, buckets[buckets.length - 1]);
+
+        assertEquals(4, histogram.getCount());
+        assertEquals(60000, histogram.getMax(), 0.001);
+    }
+
+    @Test
+    public void mean_isZeroWithoutValues() {
+        assertEquals(0, new LatencyHistogram().getMean(), 0);
+    }
+}
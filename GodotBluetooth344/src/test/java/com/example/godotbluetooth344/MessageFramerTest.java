@@ -0,0 +1,184 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MessageFramerTest {
+
+    private static class Collector implements MessageFramer.Listener {
+        final List<byte[]> messages = new ArrayList<byte[]>();
+        final List<Integer> errors = new ArrayList<Integer>();
+
+        @Override
+        public void onMessage(byte[] buffer, int length) {
+            messages.add(Arrays.copyOf(buffer, length));
+        }
+
+        @Override
+        public void onError(int error) {
+            errors.add(error);
+        }
+    }
+
+    private static MessageFramer framer(String format, Collector collector) {
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("format", format);
+        dictionary.put("max_length", 8);
+        return MessageFramer.fromDictionary(dictionary, collector);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    @Test
+    public void lengthPrefixed_splitAnywhere() {
+        Collector collector = new Collector();
+        MessageFramer framer = framer("length", collector);
+
+        // Two messages of 3 and 0 bytes and the start of a third one, with the length split
+        framer.add(bytes(3));
+        framer.add(bytes(0, 1, 2));
+        framer.add(bytes(3, 0, 0, 2, 0, 9));
+        assertEquals(2, collector.messages.size());
+        assertArrayEquals(bytes(1, 2, 3), collector.messages.get(0));
+        assertEquals(0, collector.messages.get(1).length);
+
+        framer.add(bytes(8));
+        assertArrayEquals(bytes(9, 8), collector.messages.get(2));
+    }
+
+    @Test
+    public void lengthPrefixed_rejectsLongMessages() {
+        Collector collector = new Collector();
+        MessageFramer framer = framer("length", collector);
+
+        framer.add(bytes(9, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 1, 0, 7));
+        assertEquals(Arrays.asList(MessageFramer.ERROR_TOO_LONG), collector.errors);
+        assertEquals(1, collector.messages.size());
+        assertArrayEquals(bytes(7), collector.messages.get(0));
+    }
+
+    @Test
+    public void lengthPrefixed_skipsLongMessageAcrossNotifications() {
+        Collector collector = new Collector();
+        MessageFramer framer = framer("length", collector);
+
+        // A 12 byte message in three notifications, the last one also carries the next message
+        framer.add(bytes(12, 0, 1, 2, 3));
+        framer.add(bytes(4, 5, 6, 7, 8));
+        assertEquals(0, collector.messages.size());
+
+        framer.add(bytes(9, 10, 11, 12, 2, 0, 5, 6));
+        assertEquals(Arrays.asList(MessageFramer.ERROR_TOO_LONG), collector.errors);
+        assertEquals(1, collector.messages.size());
+        assertArrayEquals(bytes(5, 6), collector.messages.get(0));
+    }
+
+    @Test
+    public void delimited_severalMessagesPerNotification() {
+        Collector collector = new Collector();
+        MessageFramer framer = framer("delimiter", collector);
+
+        framer.add("ab\nc".getBytes());
+        framer.add("d\n\n".getBytes());
+
+        assertEquals(3, collector.messages.size());
+        assertEquals("ab", new String(collector.messages.get(0)));
+        assertEquals("cd", new String(collector.messages.get(1)));
+        assertEquals("", new String(collector.messages.get(2)));
+    }
+
+    @Test
+    public void delimited_dropsLongMessagesUntilDelimiter() {
+        Collector collector = new Collector();
+        MessageFramer framer = framer("delimiter", collector);
+
+        framer.add("0123456789abc".getBytes());
+        framer.add("def\nok\n".getBytes());
+
+        assertEquals(Arrays.asList(MessageFramer.ERROR_TOO_LONG), collector.errors);
+        assertEquals(1, collector.messages.size());
+        assertEquals("ok", new String(collector.messages.get(0)));
+    }
+
+    @Test
+    public void delimited_findsDelimiterSplitAcrossTheLimit() {
+        Collector collector = new Collector();
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("format", "delimiter");
+        dictionary.put("delimiter", "\r\n".getBytes());
+        dictionary.put("max_length", 4);
+        MessageFramer framer = MessageFramer.fromDictionary(dictionary, collector);
+
+        framer.add("abcde\r\nok\r\n".getBytes());
+        framer.add("abcd\r\nxy".getBytes());
+        framer.add("z\r\n".getBytes());
+
+        assertEquals(Arrays.asList(MessageFramer.ERROR_TOO_LONG), collector.errors);
+        assertEquals(3, collector.messages.size());
+        assertEquals("ok", new String(collector.messages.get(0)));
+        assertEquals("abcd", new String(collector.messages.get(1)));
+        assertEquals("xyz", new String(collector.messages.get(2)));
+    }
+
+    @Test
+    public void sequenced_reassemblesFragments() {
+        Collector collector = new Collector();
+        MessageFramer framer = framer("sequence", collector);
+
+        framer.add(bytes(0x7E, 1, 2));
+        framer.add(bytes(0x7F, 3));
+        framer.add(bytes(0x80, 4));
+
+        assertEquals(1, collector.messages.size());
+        assertArrayEquals(bytes(1, 2, 3, 4), collector.messages.get(0));
+        assertTrue(collector.errors.isEmpty());
+    }
+
+    @Test
+    public void sequenced_dropsMessagesWithMissingFragments() {
+        Collector collector = new Collector();
+        MessageFramer framer = framer("sequence", collector);
+
+        framer.add(bytes(0x00, 1));
+        framer.add(bytes(0x02, 2)); // Fragment 1 is missing
+        framer.add(bytes(0x83, 3));
+        framer.add(bytes(0x84, 5));
+
+        assertEquals(Arrays.asList(MessageFramer.ERROR_MISSING_FRAGMENT), collector.errors);
+        assertEquals(1, collector.messages.size());
+        assertArrayEquals(bytes(5), collector.messages.get(0));
+    }
+
+    @Test
+    public void reset_dropsPartialMessage() {
+        Collector collector = new Collector();
+        MessageFramer framer = framer("sequence", collector);
+
+        framer.add(bytes(0x10, 1));
+        framer.reset();
+        framer.add(bytes(0x80, 2));
+
+        assertTrue(collector.errors.isEmpty());
+        assertArrayEquals(bytes(2), collector.messages.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromDictionary_rejectsUnknownFormat() {
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("format", "cobs");
+        MessageFramer.fromDictionary(dictionary, new Collector());
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NotificationBatcherTest {
+
+    @Test
+    public void flush_packsPayloadsInOrder() {
+        NotificationBatcher batcher = new NotificationBatcher(0);
+        Object a = new Object();
+        Object b = new Object();
+
+        batcher.add(a, new byte[]{1, 2}, 1000000);
+        batcher.add(b, new byte[]{3}, 1500000);
+        batcher.add(a, new byte[]{4, 5, 6}, 3000000);
+
+        NotificationBatcher.Batch batch = batcher.flush();
+
+        assertEquals(3, batch.count);
+        assertArrayEquals(new Object[]{a, b}, batch.sources);
+        assertArrayEquals(new int[]{0, 1, 0}, batch.sourceIndex);
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, batch.bytes);
+        assertArrayEquals(new int[]{2, 1, 3}, batch.lengths);
+        assertEquals(1000000, batch.startTime);
+        assertArrayEquals(new int[]{0, 500, 2000}, batch.timestamps);
+    }
+
+    @Test
+    public void flush_emptiesTheBatcher() {
+        NotificationBatcher batcher = new NotificationBatcher(0);
+
+        assertNull(batcher.flush());
+
+        batcher.add(this, new byte[]{1}, 0);
+        assertNotNull(batcher.flush());
+        assertEquals(0, batcher.size());
+        assertNull(batcher.flush());
+    }
+
+    @Test
+    public void add_reportsFullBatch() {
+        NotificationBatcher batcher = new NotificationBatcher(2);
+
+        assertFalse(batcher.add(this, new byte[]{1}, 0));
+        assertTrue(batcher.add(this, new byte[]{2}, 0));
+    }
+
+    @Test
+    public void add_growsBuffers() {
+        NotificationBatcher batcher = new NotificationBatcher(0);
+        byte[] payload = new byte[200];
+
+        for (int i = 0; i < 100; i++) {
+            batcher.add(this, payload, i);
+        }
+
+        NotificationBatcher.Batch batch = batcher.flush();
+        assertEquals(100, batch.count);
+        assertEquals(20000, batch.bytes.length);
+    }
+}
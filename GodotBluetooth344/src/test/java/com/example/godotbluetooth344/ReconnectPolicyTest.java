@@ -0,0 +1,55 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+
+    @Test
+    public void delay_doublesUpToMaximum() {
+        ReconnectPolicy policy = new ReconnectPolicy();
+        policy.maxAttempts = -1;
+        policy.initialDelay = 500;
+
+        assertEquals(500, policy.delay(1, 8, true));
+        assertEquals(1000, policy.delay(2, 8, true));
+        assertEquals(4000, policy.delay(4, 8, true));
+        assertEquals(ReconnectPolicy.MAX_DELAY, policy.delay(100, 8, true));
+    }
+
+    @Test
+    public void delay_givesUpAfterMaxAttempts() {
+        ReconnectPolicy policy = new ReconnectPolicy();
+        policy.maxAttempts = 3;
+
+        assertTrue(policy.delay(3, 8, true) >= 0);
+        assertEquals(-1, policy.delay(4, 8, true));
+
+        policy.maxAttempts = 0;
+        assertEquals(-1, policy.delay(1, 8, true));
+    }
+
+    @Test
+    public void delay_retriesNewConnectionsOnlyOnGattError() {
+        ReconnectPolicy policy = new ReconnectPolicy();
+        policy.gattErrorRetries = 2;
+
+        assertEquals(policy.initialDelay, policy.delay(1, ReconnectPolicy.GATT_ERROR, false));
+        assertTrue(policy.delay(2, ReconnectPolicy.GATT_ERROR, false) > 0);
+        assertEquals(-1, policy.delay(3, ReconnectPolicy.GATT_ERROR, false));
+        assertEquals(-1, policy.delay(1, 8, false));
+    }
+
+    @Test
+    public void backgroundDelay_backsOffOnlyWhenTheLinkCannotOpen() {
+        ReconnectPolicy policy = new ReconnectPolicy();
+        policy.initialDelay = 500;
+        policy.maxAttempts = 0;
+
+        assertEquals(0, policy.backgroundDelay(1, true));
+        assertEquals(500, policy.backgroundDelay(1, false));
+        assertEquals(2000, policy.backgroundDelay(3, false));
+        assertEquals(ReconnectPolicy.MAX_DELAY, policy.backgroundDelay(1000, false));
+    }
+}
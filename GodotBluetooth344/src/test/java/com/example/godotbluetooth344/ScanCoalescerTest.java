@@ -0,0 +1,40 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ScanCoalescerTest {
+
+    @Test
+    public void collect_keepsLatestResult() {
+        ScanCoalescer<String> coalescer = new ScanCoalescer<String>(0);
+
+        coalescer.offer("AA", "first");
+        coalescer.offer("AA", "second");
+        coalescer.offer("BB", "other");
+
+        Map<String, String> changed = coalescer.collect(0);
+        assertEquals(2, changed.size());
+        assertEquals("second", changed.get("AA"));
+        assertEquals("other", changed.get("BB"));
+
+        assertTrue(coalescer.collect(1).isEmpty());
+    }
+
+    @Test
+    public void collect_limitsRatePerDevice() {
+        ScanCoalescer<String> coalescer = new ScanCoalescer<String>(1000);
+
+        coalescer.offer("AA", "1");
+        assertEquals(1, coalescer.collect(5000).size());
+
+        coalescer.offer("AA", "2");
+        assertTrue(coalescer.collect(5500).isEmpty());
+
+        coalescer.offer("AA", "3");
+        assertEquals("3", coalescer.collect(6000).get("AA"));
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanProcessorTest {
+
+    private final List<Advertisement> found = new ArrayList<Advertisement>();
+    private ScanProcessor processor;
+
+    @Before
+    public void setUp() {
+        processor = new ScanProcessor(new DeviceRegistry(16, 0), new ScanProcessor.Listener() {
+            @Override
+            public void onDeviceFound(Advertisement advertisement) {
+                found.add(advertisement);
+            }
+        });
+    }
+
+    private static Advertisement advertisement(String address, String name, int rssi) {
+        return new Advertisement(address, name, rssi, new byte[0], 0);
+    }
+
+    private static Advertisement advertisement(String address, int rssi, byte... payload) {
+        return new Advertisement(address, "a", rssi, payload, 0);
+    }
+
+    @Test
+    public void process_reportsDuplicates() {
+        processor.process(advertisement("AA:00:00:00:00:01", "a", -50), 0);
+        processor.process(advertisement("AA:00:00:00:00:01", "a", -60), 1);
+
+        assertEquals(2, found.size());
+        assertEquals(2, processor.received.get());
+    }
+
+    @Test
+    public void process_dropsDuplicatesWhenAsked() {
+        processor.reportDuplicates = false;
+
+        processor.process(advertisement("AA:00:00:00:00:01", "a", -50), 0);
+        processor.process(advertisement("AA:00:00:00:00:01", "a", -60), 1);
+
+        assertEquals(1, found.size());
+    }
+
+    @Test
+    public void process_dropsUnnamedDevices() {
+        processor.process(advertisement("AA:00:00:00:00:01", null, -50), 0);
+        assertTrue(found.isEmpty());
+        assertEquals(1, processor.received.get());
+
+        processor.namedOnly = false;
+        processor.process(advertisement("AA:00:00:00:00:01", null, -50), 1);
+        assertEquals(1, found.size());
+    }
+
+    @Test
+    public void process_coalescesDuplicates() {
+        processor.coalescer = new ScanCoalescer<Advertisement>(0);
+
+        processor.process(advertisement("AA:00:00:00:00:01", "a", -50), 0);
+        processor.process(advertisement("AA:00:00:00:00:01", "a", -60), 1);
+        processor.process(advertisement("AA:00:00:00:00:01", "a", -70), 2);
+
+        assertEquals(1, found.size());
+        assertEquals(-70, processor.coalescer.collect(3).get("AA:00:00:00:00:01").rssi);
+    }
+
+    @Test
+    public void process_reportsOnlyMatchingDevices() {
+        AdvertisementFilter filter = new AdvertisementFilter();
+        filter.minRssi = -60;
+        processor.filters.add(filter);
+
+        processor.process(advertisement("AA:00:00:00:00:01", null, -50), 0);
+        processor.process(advertisement("AA:00:00:00:00:02", "b", -80), 1);
+
+        assertEquals(1, found.size());
+        assertEquals("AA:00:00:00:00:01", found.get(0).address);
+    }
+
+    @Test
+    public void process_reportsOnlyChangedPayloads() {
+        processor.changesOnly = true;
+        processor.reportDuplicates = false;
+
+        processor.process(advertisement("AA:00:00:00:00:01", -50, (byte) 20), 0);
+        processor.process(advertisement("AA:00:00:00:00:01", -60, (byte) 20), 1);
+        assertEquals(1, found.size());
+
+        processor.process(advertisement("AA:00:00:00:00:01", -60, (byte) 21), 2);
+        processor.process(advertisement("AA:00:00:00:00:01", -60, (byte) 21), 3);
+        assertEquals(2, found.size());
+        assertEquals(21, found.get(1).scanRecord[0]);
+    }
+
+    @Test
+    public void process_reportsRssiChangesPastDelta() {
+        processor.changesOnly = true;
+        processor.rssiDelta = 10;
+
+        processor.process(advertisement("AA:00:00:00:00:01", -50, (byte) 20), 0);
+        processor.process(advertisement("AA:00:00:00:00:01", -59, (byte) 20), 1);
+        assertEquals(1, found.size());
+
+        // Compared with the last reported RSSI, not the last received
+        processor.process(advertisement("AA:00:00:00:00:01", -60, (byte) 20), 2);
+        assertEquals(2, found.size());
+        processor.process(advertisement("AA:00:00:00:00:01", -55, (byte) 20), 3);
+        assertEquals(2, found.size());
+    }
+}
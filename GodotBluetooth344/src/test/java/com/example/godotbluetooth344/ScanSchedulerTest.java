@@ -0,0 +1,77 @@
+package com.example.godotbluetooth344;
+
+import android.bluetooth.le.ScanSettings;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanSchedulerTest {
+
+    @Test
+    public void startDelay_keepsStartsUnderTheLimit() {
+        ScanScheduler scheduler = new ScanScheduler();
+
+        for (int i = 0; i < ScanScheduler.MAX_STARTS; i++) {
+            assertEquals(0, scheduler.startDelay(i * 1000));
+            scheduler.onStarted(i * 1000);
+        }
+
+        // The oldest start leaves the period after START_PERIOD
+        assertEquals(ScanScheduler.START_PERIOD - 5000, scheduler.startDelay(5000));
+        assertEquals(0, scheduler.startDelay(ScanScheduler.START_PERIOD));
+
+        scheduler.onStarted(ScanScheduler.START_PERIOD);
+        assertEquals(1000, scheduler.startDelay(ScanScheduler.START_PERIOD));
+    }
+
+    @Test
+    public void nextMode_lowersModeWhenNothingIsFound() {
+        ScanScheduler scheduler = new ScanScheduler();
+
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, scheduler.firstMode());
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, scheduler.nextMode(3));
+        assertEquals(ScanSettings.SCAN_MODE_BALANCED, scheduler.nextMode(0));
+
+        int mode = 0;
+        for (int i = 0; i < ScanScheduler.QUIET_WINDOWS_LOW_POWER; i++) {
+            mode = scheduler.nextMode(0);
+        }
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, mode);
+
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, scheduler.nextMode(1));
+    }
+
+    @Test
+    public void nextMode_usesLowPowerInBackground() {
+        ScanScheduler scheduler = new ScanScheduler();
+        scheduler.foreground = false;
+
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, scheduler.firstMode());
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, scheduler.nextMode(10));
+    }
+
+    @Test
+    public void mode_followsForegroundWithoutCountingAWindow() {
+        ScanScheduler scheduler = new ScanScheduler();
+        scheduler.firstMode();
+        scheduler.nextMode(0);
+
+        scheduler.foreground = false;
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, scheduler.mode());
+
+        scheduler.foreground = true;
+        assertEquals(ScanSettings.SCAN_MODE_BALANCED, scheduler.mode());
+        assertEquals(ScanSettings.SCAN_MODE_BALANCED, scheduler.nextMode(0));
+    }
+
+    @Test
+    public void needsRestart_afterMaxScanDuration() {
+        ScanScheduler scheduler = new ScanScheduler();
+        assertFalse(scheduler.needsRestart(ScanScheduler.MAX_SCAN_DURATION));
+
+        scheduler.onStarted(1000);
+        assertFalse(scheduler.needsRestart(1000 + ScanScheduler.MAX_SCAN_DURATION - 1));
+        assertTrue(scheduler.needsRestart(1000 + ScanScheduler.MAX_SCAN_DURATION));
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.godotbluetooth344;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+// Stands in for the Bluetooth stack and a crowd of devices, so the plugin can be measured on a
+// machine without Bluetooth. Advertisements and notifications are generated as fast as asked,
+// GATT requests are answered when pump is called, like the stack does from its own thread
+class SimulatedPeripheral implements ScanTransport, GattTransport {
+
+    interface NotificationListener {
+        void onNotification(BluetoothGattCharacteristic characteristic, byte[] value, long timeNanos);
+    }
+
+    // Sender for a GattOperationQueue, operations are sent from the thread that queues them
+    static final Executor CALLER = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+            UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e"),
+            BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+
+    private final String[] addresses;
+    private final String[] names;
+    private final byte[][] records;
+    private final byte[] notificationValue;
+
+    private ScanTransport.Listener scanListener = null;
+    private GattOperationQueue queue = null;
+    private final ArrayDeque<Integer> answers = new ArrayDeque<Integer>(); // Callback types to report
+
+    long bytesWritten = 0;
+    int writes = 0;
+    int reads = 0;
+
+    // devices is the number of distinct addresses advertising, payloadSize the bytes of every
+    // advertisement and notification. Advertisements have flags and manufacturer data of company
+    // 0x004C (Apple), starting with the index of the device
+    SimulatedPeripheral(int devices, int payloadSize) {
+
+        addresses = new String[devices];
+        names = new String[devices];
+        records = new byte[devices][];
+
+        for (int i = 0; i < devices; i++) {
+            addresses[i] = DeviceRegistry.longToAddress(0xC0FFEE000000L + i);
+            names[i] = "Device " + i;
+            records[i] = new byte[payloadSize];
+
+            if (payloadSize >= 8) {
+                byte[] record = records[i];
+                record[0] = 0x02;
+                record[1] = 0x01;
+                record[2] = 0x06;
+                record[3] = (byte) (payloadSize - 4);
+                record[4] = (byte) 0xFF;
+                record[5] = 0x4C;
+                record[6] = 0x00;
+                record[7] = (byte) i;
+            }
+        }
+        notificationValue = new byte[payloadSize];
+    }
+
+    // The queue whose requests this peripheral answers
+    void attach(GattOperationQueue queue) {
+        this.queue = queue;
+        queue.setTransport(this);
+    }
+
+    // Delivers count advertisements, going through the devices one after the other. Every one is
+    // a new object, as the stack delivers them
+    void advertise(int count) {
+
+        for (int i = 0; i < count; i++) {
+            int device = i % addresses.length;
+            scanListener.onAdvertisement(new Advertisement(addresses[device], names[device],
+                    -40 - (device % 50), records[device], i));
+        }
+    }
+
+    // Delivers count notifications of characteristic, spaced interval nanoseconds
+    void notify(NotificationListener listener, int count, long interval) {
+
+        for (int i = 0; i < count; i++) {
+            listener.onNotification(characteristic, notificationValue, i * interval);
+        }
+    }
+
+    // Answers the requests sent so far, and the ones they lead to, returns how many were answered
+    int pump() {
+
+        int answered = 0;
+        while (!answers.isEmpty()) {
+            int callbackType = answers.poll();
+            boolean hasCharacteristic = callbackType != GattOperation.MTU && callbackType != GattOperation.DISCOVER_SERVICES;
+
+            queue.onCallback(callbackType, hasCharacteristic ? characteristic : null, BluetoothGatt.GATT_SUCCESS);
+            answered++;
+        }
+        return answered;
+    }
+
+    @Override
+    public void start(ScanConfiguration configuration, ScanTransport.Listener listener) {
+        scanListener = listener;
+    }
+
+    @Override
+    public void stop() {
+        scanListener = null;
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        reads++;
+        answers.add(GattOperation.READ);
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+        writes++;
+        bytesWritten += value.length;
+        answers.add(GattOperation.WRITE);
+        return true;
+    }
+
+    @Override
+    public boolean setNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        answers.add(GattOperation.SUBSCRIBE);
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        queue.setMtu(mtu);
+        answers.add(GattOperation.MTU);
+        return true;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        answers.add(GattOperation.DISCOVER_SERVICES);
+        return true;
+    }
+}
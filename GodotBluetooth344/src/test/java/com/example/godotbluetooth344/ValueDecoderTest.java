@@ -0,0 +1,164 @@
+package com.example.godotbluetooth344;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ValueDecoderTest {
+
+    private static Map<String, Object> field(String name, String type, Object... options) {
+        Map<String, Object> field = new HashMap<String, Object>();
+        field.put("name", name);
+        field.put("type", type);
+        for (int i = 0; i < options.length; i += 2) {
+            field.put((String) options[i], options[i + 1]);
+        }
+        return field;
+    }
+
+    private static ValueDecoder schema(Object... fields) {
+        Map<String, Object> schema = new HashMap<String, Object>();
+        schema.put("fields", fields);
+        return ValueDecoder.fromDictionary(schema);
+    }
+
+    private static Map<String, Object> decode(ValueDecoder decoder, int... bytes) {
+        byte[] value = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            value[i] = (byte) bytes[i];
+        }
+        Map<String, Object> out = new HashMap<String, Object>();
+        decoder.decode(value, value.length, out);
+        return out;
+    }
+
+    @Test
+    public void decode_integersWithEndianness() {
+        ValueDecoder decoder = schema(
+                field("a", "u16"),
+                field("b", "s16"),
+                field("c", "u16", "big_endian", true),
+                field("d", "u32"),
+                field("e", "s24"));
+
+        Map<String, Object> out = decode(decoder,
+                0x34, 0x12, 0xFE, 0xFF, 0x12, 0x34, 0xFF, 0xFF, 0xFF, 0xFF, 0x00, 0x00, 0x80);
+
+        assertEquals(0x1234, out.get("a"));
+        assertEquals(-2, out.get("b"));
+        assertEquals(0x1234, out.get("c"));
+        assertEquals(4294967295.0, (Double) out.get("d"), 0);
+        assertEquals(-8388608, out.get("e"));
+    }
+
+    @Test
+    public void decode_scaleAndOffset() {
+        ValueDecoder decoder = schema(field("temperature", "s16", "scale", 0.01, "offset", -10.0));
+
+        Map<String, Object> out = decode(decoder, 0xC4, 0x09);
+
+        assertEquals(15.0, (Double) out.get("temperature"), 1e-9);
+    }
+
+    @Test
+    public void decode_bitFieldsFromLowestBit() {
+        ValueDecoder decoder = schema(
+                field("flag", "bits", "bits", 1),
+                field("mode", "bits", "bits", 3),
+                field("next", "u8"));
+
+        Map<String, Object> out = decode(decoder, 0x0B, 0x07);
+
+        assertEquals(1, out.get("flag"));
+        assertEquals(5, out.get("mode"));
+        assertEquals(7, out.get("next"));
+    }
+
+    @Test
+    public void decode_repeatedFieldsAreArrays() {
+        ValueDecoder decoder = schema(
+                field("xyz", "s16", "count", 3),
+                field("rest", "u8", "count", 0));
+
+        Map<String, Object> out = decode(decoder, 1, 0, 0xFF, 0xFF, 2, 0, 9, 8);
+
+        assertArrayEquals(new int[]{1, -1, 2}, (int[]) out.get("xyz"));
+        assertArrayEquals(new int[]{9, 8}, (int[]) out.get("rest"));
+    }
+
+    @Test
+    public void decode_fieldsThatDoNotFitAreLeftOut() {
+        ValueDecoder decoder = schema(field("a", "u8"), field("b", "u16"));
+
+        Map<String, Object> out = decode(decoder, 1, 2);
+
+        assertEquals(1, out.get("a"));
+        assertFalse(out.containsKey("b"));
+    }
+
+    @Test
+    public void decode_floats() {
+        ValueDecoder decoder = schema(field("f", "f32"), field("s", "sfloat"), field("m", "float"));
+
+        int bits = Float.floatToIntBits(1.5f);
+        Map<String, Object> out = decode(decoder,
+                bits, bits >> 8, bits >> 16, bits >> 24,
+                0x72, 0xF0, // 114 * 10^-1
+                0x6E, 0x01, 0x00, 0xFF); // 366 * 10^-1
+
+        assertEquals(1.5, (Double) out.get("f"), 0);
+        assertEquals(11.4, (Double) out.get("s"), 1e-9);
+        assertEquals(36.6, (Double) out.get("m"), 1e-9);
+        assertTrue(Double.isNaN(ValueDecoder.sfloat(0x07FF)));
+    }
+
+    @Test
+    public void decode_f64() {
+        ValueDecoder decoder = schema(field("little", "f64"), field("big", "f64", "big_endian", true));
+
+        long bits = Double.doubleToLongBits(-2.25);
+        int[] bytes = new int[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (int) (bits >> (8 * i));
+            bytes[15 - i] = (int) (bits >> (8 * i));
+        }
+        Map<String, Object> out = decode(decoder, bytes);
+
+        assertEquals(-2.25, (Double) out.get("little"), 0);
+        assertEquals(-2.25, (Double) out.get("big"), 0);
+    }
+
+    @Test
+    public void decode_heartRateMeasurement() {
+        Map<String, Object> schema = new HashMap<String, Object>();
+        schema.put("format", "heart_rate");
+        ValueDecoder decoder = ValueDecoder.fromDictionary(schema);
+
+        // 16 bit heart rate, contact detected, energy expended and two RR intervals
+        Map<String, Object> out = decode(decoder, 0x1F, 0x48, 0x00, 0x10, 0x00, 0x00, 0x04, 0x00, 0x02);
+
+        assertEquals(72, out.get("heart_rate"));
+        assertEquals(true, out.get("contact"));
+        assertEquals(16, out.get("energy_expended"));
+        assertArrayEquals(new double[]{1.0, 0.5}, (double[]) out.get("rr_intervals"), 0);
+
+        out = decode(decoder, 0x04, 60);
+        assertEquals(60, out.get("heart_rate"));
+        assertEquals(true, out.get("contact_supported"));
+        assertEquals(false, out.get("contact"));
+        assertFalse(out.containsKey("rr_intervals"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromDictionary_rejectsUnknownType() {
+        schema(field("a", "u12"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromDictionary_rejectsBitsWithoutSize() {
+        schema(field("a", "bits"));
+    }
+}